@@ -0,0 +1,78 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of direct ByteBuffers of one fixed size, so packets can be received,
+ * encoded and sent through channels without allocating per query. Each thread
+ * keeps the buffer it released last for its next acquire; other free buffers
+ * are shared through a few array backed queues, picked by thread so threads
+ * rarely contend on the same one. Neither path allocates once the pool is warm.
+ *
+ * A buffer that is never released is not an error, the pool allocates another
+ * one when it runs dry.
+ */
+public class BufferPool {
+    private static final int STRIPES = 8;
+
+    private final int bufferSize;
+    private final List<ArrayBlockingQueue<ByteBuffer>> stripes = new ArrayList<>(STRIPES);
+    private final ThreadLocal<ByteBuffer[]> lastReleased = ThreadLocal.withInitial(() -> new ByteBuffer[1]);
+
+    /**
+     * @param bufferSize capacity of every buffer in the pool
+     * @param maxPooled  most free buffers kept, extra ones are left to the GC
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new ArrayBlockingQueue<>(Math.max(1, maxPooled / STRIPES)));
+        }
+    }
+
+    /**
+     * Returns a cleared buffer with bufferSize bytes remaining.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer[] local = lastReleased.get();
+        ByteBuffer buffer = local[0];
+        if (buffer != null) {
+            local[0] = null;
+            return buffer.clear();
+        }
+        int first = stripeOfCurrentThread();
+        for (int i = 0; i < STRIPES; i++) {
+            buffer = stripes.get((first + i) % STRIPES).poll();
+            if (buffer != null) {
+                return buffer.clear();
+            }
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Hands a buffer back for reuse. The caller must not touch it afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            return;
+        }
+        ByteBuffer[] local = lastReleased.get();
+        if (local[0] == null) {
+            local[0] = buffer;
+            return;
+        }
+        int first = stripeOfCurrentThread();
+        for (int i = 0; i < STRIPES; i++) {
+            if (stripes.get((first + i) % STRIPES).offer(buffer)) {
+                return;
+            }
+        }
+        // every stripe is full, the buffer is left to the garbage collector
+    }
+
+    private static int stripeOfCurrentThread() {
+        return (int) (Thread.currentThread().getId() % STRIPES);
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.Arrays;
+
+/**
+ * A cached response message together with the positions of its TTL fields, so it
+ * can be served again with TTLs decremented by the time spent in the cache. The
+ * cache itself lives off-heap in CacheSegment, an entry is a copy taken by one
+ * lookup and owned by the caller.
+ */
+public class CacheEntry {
+    // an entry hit this often is refreshed when hit in the last tenth of its lifetime
+    private static final int PREFETCH_MIN_HITS = 5;
+    private static final double PREFETCH_WINDOW = 0.1;
+    private final byte[] message;
+    private final int[] ttlOffsets;
+    private final int[] ttls;
+    private final long storedAt;
+    private final long expiresAt;
+    // NXDOMAIN or NODATA response cached per RFC 2308
+    private final boolean negative;
+
+    public CacheEntry(byte[] message, int[] ttlOffsets, int[] ttls, long storedAt, long expiresAt,
+            boolean negative) {
+        this.message = message;
+        this.ttlOffsets = ttlOffsets;
+        this.ttls = ttls;
+        this.storedAt = storedAt;
+        this.expiresAt = expiresAt;
+        this.negative = negative;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    /**
+     * Builds a copy of the cached message with every TTL reduced by the number of
+     * seconds the entry has been cached.
+     *
+     * @param now current time in milliseconds
+     * @return the response bytes ready to be sent, ID still to be set by the caller
+     */
+    public byte[] toResponse(long now) {
+        byte[] response = Arrays.copyOf(message, message.length);
+        int elapsed = (int) ((now - storedAt) / 1000);
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            int remaining = Math.max(0, ttls[i] - elapsed);
+            int offset = ttlOffsets[i];
+            response[offset] = (byte) (remaining >>> 24);
+            response[offset + 1] = (byte) (remaining >>> 16);
+            response[offset + 2] = (byte) (remaining >>> 8);
+            response[offset + 3] = (byte) remaining;
+        }
+        return response;
+    }
+
+    /**
+     * Builds a copy of the cached message for serving after it expired, with every
+     * TTL set to the given short value.
+     *
+     * @param staleTtl the TTL in seconds to hand out with the stale answer
+     * @return the response bytes ready to be sent, ID still to be set by the caller
+     */
+    public byte[] toStaleResponse(int staleTtl) {
+        byte[] response = Arrays.copyOf(message, message.length);
+        for (int offset : ttlOffsets) {
+            response[offset] = (byte) (staleTtl >>> 24);
+            response[offset + 1] = (byte) (staleTtl >>> 16);
+            response[offset + 2] = (byte) (staleTtl >>> 8);
+            response[offset + 3] = (byte) staleTtl;
+        }
+        return response;
+    }
+
+    /**
+     * Decides whether a positive entry should be refreshed in the background: it
+     * has enough hits and is within the prefetch window before its expiry.
+     *
+     * @param hitCount hits on the entry, the current one included
+     * @param now      current time in milliseconds
+     */
+    public static boolean isPrefetchDue(int hitCount, long storedAt, long expiresAt, long now) {
+        if (hitCount < PREFETCH_MIN_HITS) {
+            return false;
+        }
+        long lifetime = expiresAt - storedAt;
+        return expiresAt - now <= lifetime * PREFETCH_WINDOW;
+    }
+
+    public boolean isNegative() {
+        return this.negative;
+    }
+}
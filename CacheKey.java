@@ -0,0 +1,67 @@
+/**
+ * Key of a cached RRset: owner name (case-insensitive), query type and class.
+ */
+public class CacheKey {
+    private final DnsName name;
+    private final QueryType queryType;
+    private final int queryClass;
+    private final int hash;
+    // QNAME in canonical form, QTYPE and QCLASS, as the question appears on the wire
+    private final byte[] question;
+
+    public CacheKey(DnsName name, QueryType queryType, int queryClass) {
+        this.name = name;
+        this.queryType = queryType;
+        this.queryClass = queryClass;
+        this.hash = 31 * (31 * this.name.hashCode() + queryType.hashCode()) + queryClass;
+        this.question = new byte[name.getWireLength() + 4];
+        int offset = name.writeCanonicalTo(question, 0);
+        question[offset] = (byte) (queryType.getCode() >> 8);
+        question[offset + 1] = (byte) queryType.getCode();
+        question[offset + 2] = (byte) (queryClass >> 8);
+        question[offset + 3] = (byte) queryClass;
+    }
+
+    public DnsName getName() {
+        return this.name;
+    }
+
+    public QueryType getQueryType() {
+        return this.queryType;
+    }
+
+    public int getQueryClass() {
+        return this.queryClass;
+    }
+
+    /**
+     * Returns the key as a wire format question with the name lowercased. Keys
+     * that are equal have identical question bytes. The array must not be
+     * modified.
+     */
+    public byte[] getQuestion() {
+        return this.question;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey other = (CacheKey) o;
+        return queryClass == other.queryClass && queryType == other.queryType && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + queryType;
+    }
+}
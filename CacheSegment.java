@@ -0,0 +1,386 @@
+import java.nio.ByteBuffer;
+
+/**
+ * One stripe of the record cache, held entirely in direct memory so the garbage
+ * collector never sees the cached data. Entries are appended to a fixed size
+ * arena used as a ring: when the arena is full the oldest entries are dropped
+ * to make room, so the segment never grows past its budget. An open addressing
+ * index with linear probing maps the question of an entry to its position in the
+ * arena; each slot holds the entry's hash and its offset in 8 byte units.
+ *
+ * Entry layout in the arena, every entry starting on an 8 byte boundary:
+ * size, hash, storedAt, expiresAt, hits, question length, message length, TTL
+ * count, flags, then the question, the message and an (offset, TTL) pair for
+ * each TTL field of the message. A negative size marks padding up to the end of
+ * the arena, where an entry did not fit before wrapping.
+ *
+ * All methods are synchronized on the segment.
+ */
+public class CacheSegment {
+    private static final int SIZE = 0;
+    private static final int HASH = 4;
+    private static final int STORED_AT = 8;
+    private static final int EXPIRES_AT = 16;
+    private static final int HITS = 24;
+    private static final int QUESTION_LENGTH = 28;
+    private static final int MESSAGE_LENGTH = 30;
+    private static final int TTL_COUNT = 32;
+    private static final int FLAGS = 34;
+    private static final int HEADER_SIZE = 36;
+    private static final int TTL_PAIR_SIZE = 6;
+    private static final int SLOT_SIZE = 8;
+    private static final byte NEGATIVE = 1;
+    private static final byte PREFETCH_STARTED = 2;
+    // index slots are sized for entries of this many bytes on average
+    private static final int MIN_AVERAGE_ENTRY = 64;
+
+    private final int capacity;
+    private final int slotCount;
+    // the index is never filled past three quarters so probe sequences stay short
+    private final int maxEntries;
+    // allocated on the first store, an unused segment costs nothing
+    private ByteBuffer arena;
+    private ByteBuffer index;
+    // positions in the arena counted from its creation, taken modulo capacity
+    private long head;
+    private long tail;
+    private int entryCount;
+
+    /**
+     * @param budget bytes of direct memory the segment may use, arena and index
+     *               together
+     */
+    public CacheSegment(long budget) {
+        int slots = Integer.highestOneBit((int) Math.min(budget / (MIN_AVERAGE_ENTRY + SLOT_SIZE), 1 << 26));
+        this.slotCount = Math.max(slots, 16);
+        this.maxEntries = slotCount / 4 * 3;
+        this.capacity = (int) Math.min(budget - (long) slotCount * SLOT_SIZE, Integer.MAX_VALUE) & ~7;
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache segment budget too small: " + budget);
+        }
+    }
+
+    /**
+     * Stores an entry, replacing any entry with the same question. Entries larger
+     * than a quarter of the arena are not stored.
+     *
+     * @param question   the question in canonical wire format
+     * @param hash       hash of the question
+     * @param message    the response bytes
+     * @param length     number of valid bytes in message
+     * @param ttlOffsets offsets in message of the TTL fields to age
+     * @param ttls       TTL stored for each of those fields
+     * @return true if the entry was stored
+     */
+    public synchronized boolean put(byte[] question, int hash, byte[] message, int length, int[] ttlOffsets,
+            int[] ttls, long storedAt, long expiresAt, boolean negative) {
+        int size = align(HEADER_SIZE + question.length + length + ttlOffsets.length * TTL_PAIR_SIZE);
+        if (size > capacity / 4) {
+            return false;
+        }
+        if (arena == null) {
+            arena = ByteBuffer.allocateDirect(capacity);
+            index = ByteBuffer.allocateDirect(slotCount * SLOT_SIZE);
+        }
+        int existing = findSlot(question, hash);
+        if (existing >= 0) {
+            // the old copy stays in the arena until overwritten, unreachable
+            removeSlot(existing);
+        }
+
+        int position = (int) (head % capacity);
+        if (capacity - position < size) {
+            int padding = capacity - position;
+            makeRoom(padding);
+            arena.putInt(position + SIZE, -padding);
+            head += padding;
+            position = 0;
+        }
+        makeRoom(size);
+        while (entryCount >= maxEntries) {
+            evictOldest();
+        }
+
+        arena.putInt(position + SIZE, size);
+        arena.putInt(position + HASH, hash);
+        arena.putLong(position + STORED_AT, storedAt);
+        arena.putLong(position + EXPIRES_AT, expiresAt);
+        arena.putInt(position + HITS, 0);
+        arena.putShort(position + QUESTION_LENGTH, (short) question.length);
+        arena.putShort(position + MESSAGE_LENGTH, (short) length);
+        arena.putShort(position + TTL_COUNT, (short) ttlOffsets.length);
+        arena.put(position + FLAGS, negative ? NEGATIVE : 0);
+        int offset = position + HEADER_SIZE;
+        arena.put(offset, question, 0, question.length);
+        offset += question.length;
+        arena.put(offset, message, 0, length);
+        offset += length;
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            arena.putShort(offset, (short) ttlOffsets[i]);
+            arena.putInt(offset + 2, ttls[i]);
+            offset += TTL_PAIR_SIZE;
+        }
+        head += size;
+        insertSlot(hash, position);
+        return true;
+    }
+
+    /**
+     * Returns a heap copy of the entry for the question, or null if there is none.
+     * Expired entries are returned too, the caller decides what to do with them.
+     */
+    public synchronized CacheEntry get(byte[] question, int hash) {
+        int slot = findSlot(question, hash);
+        if (slot < 0) {
+            return null;
+        }
+        int position = entryAt(slot);
+        int messageLength = arena.getShort(position + MESSAGE_LENGTH) & 0xFFFF;
+        int ttlCount = arena.getShort(position + TTL_COUNT) & 0xFFFF;
+        int offset = position + HEADER_SIZE + question.length;
+        byte[] message = new byte[messageLength];
+        arena.get(offset, message);
+        offset += messageLength;
+        int[] ttlOffsets = new int[ttlCount];
+        int[] ttls = new int[ttlCount];
+        for (int i = 0; i < ttlCount; i++) {
+            ttlOffsets[i] = arena.getShort(offset) & 0xFFFF;
+            ttls[i] = arena.getInt(offset + 2);
+            offset += TTL_PAIR_SIZE;
+        }
+        return new CacheEntry(message, ttlOffsets, ttls, arena.getLong(position + STORED_AT),
+                arena.getLong(position + EXPIRES_AT), (arena.get(position + FLAGS) & NEGATIVE) != 0);
+    }
+
+    /**
+     * Counts a hit on the entry for the question and decides whether it should be
+     * refreshed in the background. Returns true at most once per stored entry.
+     *
+     * @param now current time in milliseconds
+     * @return true if the caller should start a prefetch
+     */
+    public synchronized boolean recordHitAndCheckPrefetch(byte[] question, int hash, long now) {
+        int slot = findSlot(question, hash);
+        if (slot < 0) {
+            return false;
+        }
+        int position = entryAt(slot);
+        int hits = arena.getInt(position + HITS) + 1;
+        arena.putInt(position + HITS, hits);
+        byte flags = arena.get(position + FLAGS);
+        if ((flags & (NEGATIVE | PREFETCH_STARTED)) != 0 || !CacheEntry.isPrefetchDue(hits,
+                arena.getLong(position + STORED_AT), arena.getLong(position + EXPIRES_AT), now)) {
+            return false;
+        }
+        arena.put(position + FLAGS, (byte) (flags | PREFETCH_STARTED));
+        return true;
+    }
+
+    /**
+     * Allows another prefetch attempt after one could not be started.
+     */
+    public synchronized void clearPrefetch(byte[] question, int hash) {
+        int slot = findSlot(question, hash);
+        if (slot >= 0) {
+            int position = entryAt(slot);
+            arena.put(position + FLAGS, (byte) (arena.get(position + FLAGS) & ~PREFETCH_STARTED));
+        }
+    }
+
+    public synchronized void remove(byte[] question, int hash) {
+        int slot = findSlot(question, hash);
+        if (slot >= 0) {
+            removeSlot(slot);
+        }
+    }
+
+    public synchronized int size() {
+        return entryCount;
+    }
+
+    /**
+     * Returns the size of the arena, the most bytes copyEntriesTo() can copy.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Copies every live entry into out as it is laid out in the arena, for a cache
+     * snapshot. Copying stops at the first entry that does not fit.
+     *
+     * @return the number of entries copied
+     */
+    public synchronized int copyEntriesTo(ByteBuffer out) {
+        if (index == null) {
+            return 0;
+        }
+        int copied = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (slotRef(slot) == 0) {
+                continue;
+            }
+            int position = entryAt(slot);
+            int size = arena.getInt(position + SIZE);
+            if (out.remaining() < size) {
+                break;
+            }
+            out.put(out.position(), arena, position, size);
+            out.position(out.position() + size);
+            copied++;
+        }
+        return copied;
+    }
+
+    /**
+     * Stores an entry copied out by copyEntriesTo(), unless the question already
+     * has an entry, which is newer. Hits and prefetch state start over.
+     *
+     * @param entries  buffer holding the entry
+     * @param offset   where the entry starts in entries
+     * @param question the entry's question, see entryQuestion()
+     * @param hash     hash of the question
+     * @return true if the entry was stored
+     */
+    public synchronized boolean restore(ByteBuffer entries, int offset, byte[] question, int hash) {
+        if (findSlot(question, hash) >= 0) {
+            return false;
+        }
+        int messageLength = entries.getShort(offset + MESSAGE_LENGTH) & 0xFFFF;
+        int ttlCount = entries.getShort(offset + TTL_COUNT) & 0xFFFF;
+        if (HEADER_SIZE + question.length + messageLength + ttlCount * TTL_PAIR_SIZE > entrySize(entries, offset)) {
+            throw new IllegalArgumentException("Malformed cache entry at offset " + offset);
+        }
+        int position = offset + HEADER_SIZE + question.length;
+        byte[] message = new byte[messageLength];
+        entries.get(position, message);
+        position += messageLength;
+        int[] ttlOffsets = new int[ttlCount];
+        int[] ttls = new int[ttlCount];
+        for (int i = 0; i < ttlCount; i++) {
+            ttlOffsets[i] = entries.getShort(position) & 0xFFFF;
+            ttls[i] = entries.getInt(position + 2);
+            position += TTL_PAIR_SIZE;
+        }
+        return put(question, hash, message, messageLength, ttlOffsets, ttls, entries.getLong(offset + STORED_AT),
+                entries.getLong(offset + EXPIRES_AT), (entries.get(offset + FLAGS) & NEGATIVE) != 0);
+    }
+
+    /**
+     * Returns the size in bytes of an entry copied out by copyEntriesTo().
+     *
+     * @throws IllegalArgumentException if the size is not that of an entry
+     */
+    public static int entrySize(ByteBuffer entries, int offset) {
+        int size = entries.getInt(offset + SIZE);
+        if (size < HEADER_SIZE || (size & 7) != 0) {
+            throw new IllegalArgumentException("Malformed cache entry at offset " + offset);
+        }
+        return size;
+    }
+
+    public static long entryExpiresAt(ByteBuffer entries, int offset) {
+        return entries.getLong(offset + EXPIRES_AT);
+    }
+
+    /**
+     * Returns a copy of the question of an entry copied out by copyEntriesTo().
+     */
+    public static byte[] entryQuestion(ByteBuffer entries, int offset) {
+        byte[] question = new byte[entries.getShort(offset + QUESTION_LENGTH) & 0xFFFF];
+        entries.get(offset + HEADER_SIZE, question);
+        return question;
+    }
+
+    // drops the oldest entries until size bytes are free at the head
+    private void makeRoom(int size) {
+        while (head + size - tail > capacity) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        int position = (int) (tail % capacity);
+        int size = arena.getInt(position + SIZE);
+        if (size < 0) {
+            tail += -size;
+            return;
+        }
+        // replaced and removed entries have no slot left, only live ones are unlinked
+        int hash = arena.getInt(position + HASH);
+        int mask = slotCount - 1;
+        for (int slot = hash & mask; slotRef(slot) != 0; slot = (slot + 1) & mask) {
+            if (entryAt(slot) == position) {
+                removeSlot(slot);
+                break;
+            }
+        }
+        tail += size;
+    }
+
+    private int findSlot(byte[] question, int hash) {
+        if (index == null) {
+            return -1;
+        }
+        int mask = slotCount - 1;
+        for (int slot = hash & mask; slotRef(slot) != 0; slot = (slot + 1) & mask) {
+            if (index.getInt(slot * SLOT_SIZE) == hash && questionEquals(entryAt(slot), question)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean questionEquals(int position, byte[] question) {
+        if ((arena.getShort(position + QUESTION_LENGTH) & 0xFFFF) != question.length) {
+            return false;
+        }
+        int offset = position + HEADER_SIZE;
+        for (int i = 0; i < question.length; i++) {
+            if (arena.get(offset + i) != question[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insertSlot(int hash, int position) {
+        int mask = slotCount - 1;
+        int slot = hash & mask;
+        while (slotRef(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index.putInt(slot * SLOT_SIZE, hash);
+        index.putInt(slot * SLOT_SIZE + 4, position / 8 + 1);
+        entryCount++;
+    }
+
+    // backward shift deletion: later entries of the probe sequence move into the
+    // hole so lookups never need tombstones
+    private void removeSlot(int slot) {
+        int mask = slotCount - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; slotRef(next) != 0; next = (next + 1) & mask) {
+            int home = index.getInt(next * SLOT_SIZE) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                index.putLong(hole * SLOT_SIZE, index.getLong(next * SLOT_SIZE));
+                hole = next;
+            }
+        }
+        index.putLong(hole * SLOT_SIZE, 0L);
+        entryCount--;
+    }
+
+    // 0 for an empty slot, otherwise the entry offset in 8 byte units plus one
+    private int slotRef(int slot) {
+        return index.getInt(slot * SLOT_SIZE + 4);
+    }
+
+    private int entryAt(int slot) {
+        return (slotRef(slot) - 1) * 8;
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Writes the record and delegation caches to a file and reads them back, so a
+ * restarted resolver starts with the answers and zone cuts it knew before.
+ *
+ * File layout, big endian: magic, version, the time it was written, the number of
+ * record blocks, then for each segment of the record cache a block of its entries
+ * in CacheSegment's own layout preceded by the block's length, and last the
+ * delegations. Cached answers are copied to disk as they are kept in memory, so
+ * writing needs no encoding and reading only checks each entry's expiry.
+ *
+ * The file is replaced atomically, a crash while writing leaves the previous
+ * snapshot in place. It is read through a read-only memory mapping and its
+ * record blocks are restored in parallel.
+ */
+public class CacheSnapshot {
+    private static final int MAGIC = 0x444E5343;
+    private static final int VERSION = 1;
+    // magic, version, written at, block count
+    private static final int HEADER_SIZE = 20;
+
+    private final Path path;
+    private final RecordCache recordCache;
+    private final DelegationCache delegationCache;
+    // a segment is copied here under its lock and written out after the lock is released
+    private ByteBuffer scratch;
+
+    public CacheSnapshot(Path path, RecordCache recordCache, DelegationCache delegationCache) {
+        this.path = path;
+        this.recordCache = recordCache;
+        this.delegationCache = delegationCache;
+    }
+
+    /**
+     * Writes both caches to the snapshot file, replacing the previous snapshot.
+     */
+    public synchronized void write() throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            int segments = recordCache.getSegmentCount();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(segments);
+            writeFully(out, header.flip());
+            if (scratch == null || scratch.capacity() < recordCache.getSegmentCapacity()) {
+                scratch = ByteBuffer.allocateDirect(recordCache.getSegmentCapacity());
+            }
+            ByteBuffer blockLength = ByteBuffer.allocate(4);
+            for (int i = 0; i < segments; i++) {
+                ByteBuffer entries = recordCache.copySegment(i, scratch);
+                writeFully(out, blockLength.clear().putInt(entries.remaining()).flip());
+                writeFully(out, entries);
+            }
+            writeFully(out, encodeDelegations(delegationCache.getDelegations()));
+            out.force(false);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the unexpired entries of the snapshot file, if there is one, into
+     * both caches. Answers cached in the meantime are kept over restored ones.
+     *
+     * @throws IllegalArgumentException if the file is damaged, entries read before
+     *                                  the damage stay cached
+     */
+    public void load() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        MappedByteBuffer file;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            file = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+        if (file.limit() < HEADER_SIZE || file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+            System.out.println("Ignoring cache snapshot in an unknown format");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int blockCount = file.getInt(16);
+        int[] blockStarts = new int[blockCount];
+        int[] blockEnds = new int[blockCount];
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < blockCount; i++) {
+            blockStarts[i] = offset + 4;
+            blockEnds[i] = blockStarts[i] + file.getInt(offset);
+            if (blockEnds[i] < blockStarts[i] || blockEnds[i] > file.limit()) {
+                throw new IllegalArgumentException("Cache snapshot is truncated");
+            }
+            offset = blockEnds[i];
+        }
+        // a block holds one segment's entries, which hash to the same segment again,
+        // so blocks restored in parallel rarely wait on each other's segment lock
+        IntStream.range(0, blockCount).parallel()
+                .forEach(i -> restoreBlock(file, blockStarts[i], blockEnds[i], now));
+        int delegations = restoreDelegations(file, offset);
+        System.out.println("Loaded cache snapshot " + path + ": " + recordCache.size() + " answers cached, "
+                + delegations + " delegations restored");
+    }
+
+    private void restoreBlock(ByteBuffer file, int start, int end, long now) {
+        int offset = start;
+        while (offset < end) {
+            // reads are absolute, every block can share the one mapping
+            offset += recordCache.restore(file, offset, now);
+        }
+        if (offset != end) {
+            throw new IllegalArgumentException("Malformed cache snapshot block at offset " + start);
+        }
+    }
+
+    // count, then per zone: name, expiry time, server count and each server's name and address.
+    // servers without a name or address are left out, and zones left without servers
+    private static ByteBuffer encodeDelegations(List<Delegation> delegations) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int written = 0;
+        out.writeInt(0);
+        for (Delegation delegation : delegations) {
+            List<DNSRecord> servers = new ArrayList<>(delegation.getServers().size());
+            for (DNSRecord server : delegation.getServers()) {
+                if (server.getName() != null && server.getDomainIP() != null) {
+                    servers.add(server);
+                }
+            }
+            if (servers.isEmpty()) {
+                continue;
+            }
+            writeString(out, delegation.getZone().toString());
+            out.writeLong(delegation.getExpiresAt());
+            out.writeShort(servers.size());
+            for (DNSRecord server : servers) {
+                writeString(out, server.getName());
+                writeString(out, server.getDomainIP());
+            }
+            written++;
+        }
+        out.flush();
+        ByteBuffer encoded = ByteBuffer.wrap(bytes.toByteArray());
+        return encoded.putInt(0, written);
+    }
+
+    private int restoreDelegations(ByteBuffer file, int offset) {
+        ByteBuffer in = file.duplicate().position(offset);
+        long now = System.currentTimeMillis();
+        int count = in.getInt();
+        int restored = 0;
+        for (int i = 0; i < count; i++) {
+            DnsName zone = DnsName.of(readString(in));
+            long expiresAt = in.getLong();
+            int serverCount = in.getShort() & 0xFFFF;
+            List<DNSRecord> servers = new ArrayList<>(serverCount);
+            for (int j = 0; j < serverCount; j++) {
+                DNSRecord server = new DNSRecord(readString(in), readString(in), QueryType.A);
+                server.setTimeToLive((int) Math.max(0, (expiresAt - now) / 1000));
+                servers.add(server);
+            }
+            if (expiresAt > now) {
+                delegationCache.restore(new Delegation(zone, servers, expiresAt));
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    // names and addresses are ASCII, one byte per character after a 16 bit length
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeShort(value.length());
+        out.writeBytes(value);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up, such as queries received or cache hits. Backed by a
+ * LongAdder, so threads incrementing it at the same time do not contend on one
+ * memory location.
+ */
+public class Counter implements CounterMBean {
+    private final String description;
+    private final LongAdder count = new LongAdder();
+
+    public Counter(String description) {
+        this.description = description;
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,8 @@
+/**
+ * JMX view of a Counter.
+ */
+public interface CounterMBean {
+    long getCount();
+
+    String getDescription();
+}
@@ -1,11 +1,15 @@
+import java.io.IOException;
 import java.net.*;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 public class DNSClient {
 
     public QueryType queryType = QueryType.A;
     public static final int MAX_DNS_PACKET_SIZE = 512;
+    // UDP payload size advertised to the resolver in an EDNS0 OPT record
+    public static final int EDNS_PAYLOAD_SIZE = 1232;
     private int timeout = 5000;
     private final byte[] resolverIPBytes = new byte[4];
     String resolverIPString;
@@ -39,10 +43,12 @@ public class DNSClient {
             InetAddress inetaddress = InetAddress.getByAddress(resolverIPBytes);
             DNSRequest request = new DNSRequest(domainName, queryType, RDFlag);
 
+            // the response is parsed at the plain request length, the OPT record comes after the question
             byte[] requestBytes = request.getRequestBytes();
-            byte[] responseBytes = new byte[MAX_DNS_PACKET_SIZE];
+            byte[] ednsRequestBytes = request.getRequestBytes(EDNS_PAYLOAD_SIZE);
+            byte[] responseBytes = new byte[EDNS_PAYLOAD_SIZE];
 
-            DatagramPacket requestPacket = new DatagramPacket(requestBytes, requestBytes.length, inetaddress, port);
+            DatagramPacket requestPacket = new DatagramPacket(ednsRequestBytes, ednsRequestBytes.length, inetaddress, port);
             DatagramPacket responsePacket = new DatagramPacket(responseBytes, responseBytes.length);
 
             // Send packet and time response
@@ -56,13 +62,24 @@ public class DNSClient {
             System.out.println();
 
             DNSMessage response = new DNSMessage(responsePacket.getData(), requestBytes.length, queryType);
+            if (response.getTC()) {
+                // the answer did not fit in one datagram, ask again over TCP for all of it
+                System.out.println("Response truncated, retrying over TCP");
+                try {
+                    byte[] tcpResponse = queryOverTcp(new InetSocketAddress(inetaddress, port), requestBytes);
+                    response = new DNSMessage(Arrays.copyOf(tcpResponse, Math.max(tcpResponse.length, EDNS_PAYLOAD_SIZE)),
+                            requestBytes.length, queryType);
+                } catch (IOException e) {
+                    System.out.println("ERROR: TCP retry failed, showing the truncated response");
+                }
+            }
             
             // Error Handling for format error, server failure and name error
             // other error simply report the error code
             response.outputResponse();
 
         } catch (NullPointerException e) {
-            System.out.println("Warning: response cannot fit into 512 MAX DNS PACKET SIZE");
+            System.out.println("Warning: response cannot fit into " + EDNS_PAYLOAD_SIZE + " byte EDNS0 payload");
             System.out.println("The rest of response cannot be shown");
         } catch (SocketException e) {
             System.out.println("ERROR: Could not create socket");
@@ -76,6 +93,17 @@ public class DNSClient {
         }
     }
 
+    private byte[] queryOverTcp(InetSocketAddress server, byte[] requestBytes) throws IOException, InterruptedException {
+        TcpTransport tcpTransport = new TcpTransport(timeout, timeout);
+        try {
+            return tcpTransport.query(server, requestBytes, requestBytes.length).get();
+        } catch (ExecutionException e) {
+            throw new IOException("TCP query to " + server + " failed", e.getCause());
+        } finally {
+            tcpTransport.close();
+        }
+    }
+
     private void parseInputArguments(String[] args) {
         List<String> argsList = Arrays.asList(args);
         if (argsList.size() < 3 || argsList.size() > 6) {
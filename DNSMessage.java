@@ -1,143 +1,109 @@
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+/**
+ * A parsed DNS message. The wire bytes are indexed once by a DNSMessageView and
+ * read in place; DNSRecord objects and section copies are only built when one of
+ * their getters is first called.
+ */
 public class DNSMessage {
     private final byte[] response;
-    private byte[] ID;
-    private final byte[] questionAndHeaderBytes;
-    private final byte[] answerSectionBytes;
-    private boolean QR, AA, TC, RD, RA;
-    private int RCode, QDCount, ANCount, NSCount, ARCount;
+    private final DNSMessageView view;
+    private final byte[] ID;
+    private final boolean AA, TC;
+    private final int RCode, ANCount, NSCount, ARCount;
+    private QueryType queryType = QueryType.A;
+    private boolean noRecords = false;
     private DNSRecord[] answerRecords;
     private DNSRecord[] authorityRecords;
     private DNSRecord[] additionalRecords;
-    private QueryType queryType = QueryType.A;
-    private boolean noRecords = false;
-    private String queryDomainName;
-    private final int MAX_DNS_PACKET_SIZE = 512;
 
     public DNSMessage(byte[] messageBytes) {
         // contructor DNSMessage for DNS request
         this.response = messageBytes;
-        this.parseHeader();
-        // parse Question section
-        int startOfAnswerIndex = this.parseQuestion();
-        // now offset at end of question section and start of answer section
-        // deep copy question section into class questionBytes
-        this.questionAndHeaderBytes = new byte[startOfAnswerIndex];
-        System.arraycopy(response, 0, this.questionAndHeaderBytes, 0, startOfAnswerIndex);
-        // deep copy answer section into class answerBytes
-        this.answerSectionBytes = new byte[this.response.length-startOfAnswerIndex];
-        System.arraycopy(response, startOfAnswerIndex, this.answerSectionBytes, 
-            0, this.response.length-startOfAnswerIndex);
+        this.view = new DNSMessageView(ByteBuffer.wrap(messageBytes));
+        this.ID = new byte[] { messageBytes[0], messageBytes[1] };
+        this.AA = view.isAuthoritative();
+        this.TC = view.isTruncated();
+        this.RCode = view.getRCode();
+        this.ANCount = view.getANCount();
+        this.NSCount = view.getNSCount();
+        this.ARCount = view.getARCount();
+        this.queryType = QueryType.fromCode(view.getQuestionType());
     }
 
     public DNSMessage(byte[] messageBytes, int requestSize) {
         // construct the DNSMessage from Response Message Bytes
         // not throwing any exception
-        this.response = messageBytes;
-
-        this.parseHeader();
-        // parse Question section
-        int startOfAnswerIndex = this.parseQuestion();
-        // now offset at end of question section and start of answer section
-        // deep copy question section into class questionBytes
-        this.questionAndHeaderBytes = new byte[startOfAnswerIndex];
-        System.arraycopy(response, 0, this.questionAndHeaderBytes, 0, startOfAnswerIndex);
-        // deep copy answer section into class answerBytes
-        this.answerSectionBytes = new byte[this.response.length-startOfAnswerIndex];
-        System.arraycopy(response, startOfAnswerIndex, this.answerSectionBytes, 
-            0, this.response.length-startOfAnswerIndex);
-
-
-        answerRecords = new DNSRecord[ANCount];
-        int offSet = requestSize;
-        for (int i = 0; i < ANCount && offSet < MAX_DNS_PACKET_SIZE && offSet > 0; i++) {
-            answerRecords[i] = this.parseAnswer(offSet);
-            offSet += answerRecords[i].getByteLength();
-        }
-        if (offSet >= MAX_DNS_PACKET_SIZE || offSet < 0) {
-            this.TC = true;
-            return;
-        }
-
-        this.authorityRecords = new DNSRecord[NSCount];
-        for (int i = 0; i < NSCount && offSet < MAX_DNS_PACKET_SIZE; i++) {
-            authorityRecords[i] = this.parseAnswer(offSet);
-            offSet += authorityRecords[i].getByteLength();
-        }
-        if (offSet >= MAX_DNS_PACKET_SIZE) {
-            this.TC = true;
-            return;
-        }
-
-        additionalRecords = new DNSRecord[ARCount];
-        for (int i = 0; i < ARCount && offSet < MAX_DNS_PACKET_SIZE; i++) {
-            additionalRecords[i] = this.parseAnswer(offSet);
-            offSet += additionalRecords[i].getByteLength();
-        }
-        if (offSet >= MAX_DNS_PACKET_SIZE) {
-            this.TC = true;
-        }
+        // records are located from the question section itself, which is
+        // requestSize bytes long for responses echoing our own question
+        this(messageBytes);
     }
 
     public DNSMessage(byte[] messageBytes, int requestSize, QueryType queryType) {
         // construct the DNSMessage from Response Message Bytes
         // throwing exception if query type is not response or response is not the query
         // type
-        this.response = messageBytes;
-        this.queryType = queryType;
-
-        this.parseHeader();
-        // parse Question section
-        int startOfAnswerIndex = this.parseQuestion();
-        // now offset at end of question section and start of answer section
-        // deep copy question section into class questionBytes
-        this.questionAndHeaderBytes = new byte[startOfAnswerIndex];
-        System.arraycopy(response, 0, this.questionAndHeaderBytes, 0, startOfAnswerIndex);
-        // deep copy answer section into class answerBytes
-        this.answerSectionBytes = new byte[this.response.length-startOfAnswerIndex];
-        System.arraycopy(response, startOfAnswerIndex, this.answerSectionBytes, 
-            0, this.response.length-startOfAnswerIndex);
-
-
-        answerRecords = new DNSRecord[ANCount];
-        int offSet = requestSize;
-        for (int i = 0; i < ANCount && offSet < MAX_DNS_PACKET_SIZE; i++) {
-            answerRecords[i] = this.parseAnswer(offSet);
-            offSet += answerRecords[i].getByteLength();
-        }
-        if (offSet >= MAX_DNS_PACKET_SIZE) {
-            this.TC = true;
-            return;
+        this(messageBytes);
+        try {
+            this.checkRCodeForErrors();
+        } catch (NameErrorException e) {
+            noRecords = true;
         }
+    }
 
-
-        this.authorityRecords = new DNSRecord[NSCount];
-        for (int i = 0; i < NSCount && offSet < MAX_DNS_PACKET_SIZE; i++) {
-            authorityRecords[i] = this.parseAnswer(offSet);
-            offSet += authorityRecords[i].getByteLength();
+    /**
+     * Encodes a message for a client accepting at most limit bytes, with the
+     * client's ID, into the given buffer, which is flipped and returned ready to
+     * send. The upstream's OPT record is dropped, since EDNS0 is hop by hop, and
+     * records are copied in section order, with names compressed again, for as long
+     * as they fit. TC is set if an answer or authority record had to be left out.
+     *
+     * @param source          the message to answer with
+     * @param id              the ID of the client's query
+     * @param out             the buffer to write to, its capacity bounds the message
+     * @param limit           the largest message the client accepts
+     * @param ednsPayloadSize the payload size to advertise in our own OPT record, or
+     *                        0 if the client did not use EDNS0
+     */
+    public static ByteBuffer encodeForClient(DNSMessageView source, int id, ByteBuffer out, int limit,
+            int ednsPayloadSize) {
+        DNSMessageBuilder builder = new DNSMessageBuilder(out, limit);
+        builder.copyQuestion(id, source);
+        if (ednsPayloadSize > 0) {
+            builder.reserve(DNSRequest.OPT_RECORD_SIZE);
         }
-        if (offSet >= MAX_DNS_PACKET_SIZE) {
-            this.TC = true;
-            return;
+        copyRecords(builder, source);
+        if (ednsPayloadSize > 0) {
+            builder.addOptRecord(ednsPayloadSize);
         }
+        return builder.finish();
+    }
 
-        additionalRecords = new DNSRecord[ARCount];
-        for (int i = 0; i < ARCount && offSet < MAX_DNS_PACKET_SIZE; i++) {
-            additionalRecords[i] = this.parseAnswer(offSet);
-            offSet += additionalRecords[i].getByteLength();
-        }
-        if (offSet >= MAX_DNS_PACKET_SIZE) {
-            this.TC = true;
+    /**
+     * Copies every record of the source except OPT records into the same section
+     * of the builder, stopping at the first record that does not fit. Marks the
+     * builder truncated if the source itself was missing answer or authority
+     * records.
+     */
+    public static void copyRecords(DNSMessageBuilder builder, DNSMessageView source) {
+        int[] sectionEnds = { source.getANCount(), source.getANCount() + source.getNSCount(),
+                source.getANCount() + source.getNSCount() + source.getARCount() };
+        int section = 0;
+        for (int i = 0; i < source.getRecordCount(); i++) {
+            while (i >= sectionEnds[section]) {
+                section++;
+            }
+            if (source.getRecordType(i) == DNSMessageView.TYPE_OPT) {
+                continue;
+            }
+            if (!builder.copyRecord(section, source, i)) {
+                return;
+            }
         }
-        try {
-            this.checkRCodeForErrors();
-        } catch (NameErrorException e) {
-            noRecords = true;
+        if (source.getRecordCount() < sectionEnds[1]) {
+            builder.setTruncated();
         }
-
     }
 
     public void outputResponse() throws NullPointerException {
@@ -174,7 +140,7 @@ public class DNSMessage {
 
         System.out.println("***Answer Section (" + this.ANCount + " Answer Records)***");
 
-        for (DNSRecord r : answerRecords) {
+        for (DNSRecord r : getAnswerRecords()) {
             r.outputRecord();
         }
 
@@ -182,7 +148,7 @@ public class DNSMessage {
 
         if (this.NSCount > 0) {
             System.out.println("***Authroity Section (" + this.NSCount + " Authority Records)***");
-            for (DNSRecord r : authorityRecords) {
+            for (DNSRecord r : getAuthorityRecords()) {
                 r.outputRecord();
             }
         }
@@ -190,7 +156,7 @@ public class DNSMessage {
         System.out.println();
         if (this.ARCount > 0) {
             System.out.println("***Additional Records Section***");
-            for (DNSRecord r : additionalRecords) {
+            for (DNSRecord r : getAdditionalRecords()) {
                 r.outputRecord();
             }
         }
@@ -218,346 +184,107 @@ public class DNSMessage {
         }
     }
 
-    private void parseHeader() {
-        // ID
-        byte[] ID = new byte[2];
-        ID[0] = response[0];
-        ID[1] = response[1];
-        this.ID = ID;
-
-        // QR
-        this.QR = getBit(response[2], 7) == 1;
-
-        // AA
-        this.AA = getBit(response[2], 2) == 1;
-
-        // TC
-        this.TC = getBit(response[2], 1) == 1;
-
-        // RD
-        this.RD = getBit(response[2], 0) == 1;
-
-        // RA
-        this.RA = getBit(response[3], 7) == 1;
-
-        // RCODE
-        this.RCode = response[3] & 0x0F;
-
-        // QDCount
-        byte[] QDCount = { response[4], response[5] };
-        ByteBuffer wrapped = ByteBuffer.wrap(QDCount);
-        this.QDCount = wrapped.getShort();
-
-        // ANCount
-        byte[] ANCount = { response[6], response[7] };
-        wrapped = ByteBuffer.wrap(ANCount);
-        this.ANCount = wrapped.getShort();
-
-        // NSCount
-        byte[] NSCount = { response[8], response[9] };
-        wrapped = ByteBuffer.wrap(NSCount);
-        this.NSCount = wrapped.getShort();
-
-        // ARCount
-        byte[] ARCount = { response[10], response[11] };
-        wrapped = ByteBuffer.wrap(ARCount);
-        this.ARCount = wrapped.getShort();
-    }
 
     /**
-     * Parses the question section of the message and returns the offset at the start of the answer section in the bytes[].
-     *
-     * @return  the offset at the start of the answer section in the bytes[]
+     * Builds the DNSRecord objects of all three sections from the view. Records
+     * past the end of a truncated message, and A records whose data is not an
+     * IPv4 address, are left out, so every A record built has a domainIP.
      */
-    private int parseQuestion() {
-        // get the QueryDomainName and QueryType for class variable
-        // return the offset at the start of answer section in the bytes[]
-
-        int offset = 12; // question section starts from 12 bytes in the message
-
-        // get QName (domain main) in question section of the message
-        offset += parseQuestionQName();
-
-        // get QType
-        byte[] qTypeBytes = new byte[] { response[offset], response[offset + 1] };
-        int qtypeValue = (qTypeBytes[1] & 0xFF);
-        setQueryTypeFromValue(qtypeValue);
-
-        // get QClass
-        offset += 2;
-        byte[] qClassBytes = new byte[] {response[offset], response[offset+1]};
-        // this.QClass =
-        offset += 2;
-        return offset;
-    }
-
-    private void setQueryTypeFromValue(int qtypeValue) {
-        switch (qtypeValue) {
-            case 1:
-                this.queryType = QueryType.A;
-                break;
-            case 2:
-                this.queryType = QueryType.NS;
-                break;
-            case 5:
-                this.queryType = QueryType.CNAME;
-                break;
-            case 12:
-                this.queryType = QueryType.PTR;
-                break;
-            case 15:
-                this.queryType = QueryType.MX;
-                break;
-            default:
-                this.queryType = QueryType.OTHER;
-        }
-    }
-
-    public static String byteArrayToHexString(byte[] byteArray) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : byteArray) {
-            sb.append(b);
+    private void materializeRecords() {
+        if (this.answerRecords != null) {
+            return;
         }
-        return sb.toString();
-    }
-
-    private int parseQuestionQName() {
-        int countByte = 0;
-        StringBuilder sb = new StringBuilder();
-        while (!Byte.toString(response[countByte + 12]).equals("0")) {
-            int byteValue = Integer.parseInt(Byte.toString(response[countByte + 12]));
-            if (byteValue > 0 && byteValue < 15) {
-                sb.append('.');
-            } else {
-                sb.append((char) byteValue);
+        int[] sectionEnds = { ANCount, ANCount + NSCount, ANCount + NSCount + ARCount };
+        DNSRecord[][] sections = new DNSRecord[3][];
+        int index = 0;
+        for (int section = 0; section < 3; section++) {
+            int end = Math.min(sectionEnds[section], view.getRecordCount());
+            DNSRecord[] records = new DNSRecord[Math.max(0, end - index)];
+            int count = 0;
+            for (; index < end; index++) {
+                if (view.getRecordType(index) == QueryType.A.getCode() && view.getRdLength(index) != 4) {
+                    continue;
+                }
+                records[count++] = buildRecord(index);
             }
-            countByte++;
+            sections[section] = count == records.length ? records : Arrays.copyOf(records, count);
         }
-        sb.deleteCharAt(0);
-        this.queryDomainName = sb.toString();
-        countByte++;
-        return countByte;
-    }
-
-    private DNSRecord parseAnswer(int index) {
-        DNSRecord result = new DNSRecord(this.AA, this.TC);
-
-        String domain = "";
-        int countByte = index;
-
-        rDataEntry domainResult = getDomainFromIndex(countByte);
-        countByte += domainResult.getBytes();
-        domain = domainResult.getDomain();
-
-        // Name
-        result.setName(domain);
-
-        // TYPE
-        byte[] RRTypeByte = new byte[2];
-        RRTypeByte[0] = response[countByte];
-        RRTypeByte[1] = response[countByte + 1];
-
-        // TODO tempo fix for ptr
-        if ((RRTypeByte[0]&0xff)==0 && (RRTypeByte[1]&0xff)==0) {
-            countByte++;
-            RRTypeByte[0] = response[countByte];
-            RRTypeByte[1] = response[countByte + 1];
-        }
-        //////
-        
-        result.setQueryType(getQTYPEFromByteArray(RRTypeByte));
-
-        countByte += 2;
-        // CLASS
-        byte[] ans_class = new byte[2];
-        ans_class[0] = response[countByte];
-        ans_class[1] = response[countByte + 1];
-
-        result.setQueryClass(ans_class);
-
-        countByte += 2;
-        // TTL
-        byte[] TTL = { response[countByte], response[countByte + 1], response[countByte + 2], response[countByte + 3] };
-        ByteBuffer wrapped = ByteBuffer.wrap(TTL);
-        result.setTimeToLive(wrapped.getInt());
-
-        countByte += 4;
-        // RDLength
-        byte[] RDLength = { response[countByte], response[countByte + 1] };
-        wrapped = ByteBuffer.wrap(RDLength);
-        int rdLength = wrapped.getShort();
-        result.setRdLength(rdLength);
-
-        countByte += 2;
-        // RDATA
+        this.authorityRecords = sections[1];
+        this.additionalRecords = sections[2];
+        this.answerRecords = sections[0];
+    }
+
+    private DNSRecord buildRecord(int index) {
+        DNSRecord result = new DNSRecord(this.AA, view.getTCBit());
+        result.setName(view.getRecordName(index));
+        result.setQueryType(QueryType.fromCode(view.getRecordType(index)));
+        int queryClass = view.getRecordClass(index);
+        result.setQueryClass(new byte[] { (byte) (queryClass >> 8), (byte) queryClass });
+        result.setOffset(view.getRecordOffset(index));
+        result.setTimeToLive(view.getTtl(index));
+        result.setRdLength(view.getRdLength(index));
+        result.setByteLength(view.getRecordLength(index));
+
+        int rdata = view.getRdataOffset(index);
         switch (result.getQueryType()) {
             case A:
-                result.setDomainIP(parseATypeRDATA(rdLength, countByte));
+                // materializeRecords() only builds A records with four bytes of data
+                result.setDomainIP(view.u8(rdata) + "." + view.u8(rdata + 1) + "." + view.u8(rdata + 2)
+                        + "." + view.u8(rdata + 3));
                 break;
             case NS:
-                result.setDomainIP(parseNSTypeRDATA(rdLength, countByte));
+            case CNAME:
+            case PTR:
+                result.setDomainIP(view.getName(rdata));
                 break;
             case MX:
-                result.setDomainIP(parseMXTypeRDATA(rdLength, countByte, result));
+                result.setMxPreference((short) view.u16(rdata));
+                result.setDomainIP(view.getName(rdata + 2));
                 break;
-            case CNAME:
-                result.setDomainIP(parseCNAMETypeRDATA(rdLength, countByte));
-                break;
-            case PTR:
-                result.setDomainIP(parsePTRTypeRDATA(rdLength, countByte));
+            case SOA:
+                // the MNAME, the rest of the SOA data is read from the view where needed
+                result.setDomainIP(view.getName(rdata));
                 break;
-            case OTHER:
+            default:
                 break;
         }
-        // System.out.println("parsing queryType: "+result.getQueryType());
-        // System.out.println("domainIP just set: "+result.getDomainIP());
-        // System.out.println("countByte: "+countByte);
-        // System.out.println("rdLength: "+rdLength);
-        // System.out.println("index: "+index);
-
-        result.setByteLength(countByte + rdLength - index);
         return result;
     }
 
-    private String parseATypeRDATA(int rdLength, int countByte) {
-        String address = "";
-        byte[] byteAddress = { response[countByte], response[countByte + 1], response[countByte + 2],
-                response[countByte + 3] };
-        try {
-            InetAddress inetaddress = InetAddress.getByAddress(byteAddress);
-            address = inetaddress.toString().substring(1);
-        } catch (UnknownHostException e) {
-            // e.printStackTrace();
-        }
-        return address;
-
-    }
-
-    private String parseNSTypeRDATA(int rdLength, int countByte) {
-        rDataEntry result = getDomainFromIndex(countByte);
-        String nameServer = result.getDomain();
-
-        return nameServer;
-    }
-    private String parsePTRTypeRDATA(int rdLength, int countByte) {
-        rDataEntry result = getDomainFromIndex(countByte);
-        String nameServer = result.getDomain();
-        return nameServer;
-    }
-
-    private String parseMXTypeRDATA(int rdLength, int countByte, DNSRecord record) {
-        byte[] mxPreference = { this.response[countByte], this.response[countByte + 1] };
-        ByteBuffer buf = ByteBuffer.wrap(mxPreference);
-        record.setMxPreference(buf.getShort());
-        return getDomainFromIndex(countByte + 2).getDomain();
-    }
-
-    private String parseCNAMETypeRDATA(int rdLength, int countByte) {
-        rDataEntry result = getDomainFromIndex(countByte);
-        String cname = result.getDomain();
-
-        return cname;
-    }
-
-    private void validateQueryTypeIsResponse() {
-        if (!this.QR) {
-            throw new RuntimeException("ERROR\tInvalid response from server: Message is not a response");
+    public static String byteArrayToHexString(byte[] byteArray) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : byteArray) {
+            sb.append(b);
         }
+        return sb.toString();
     }
 
-    // private void validateResponseQuestionType() {
-    // // Question starts at byte 13 (indexed at 11)
-    // int index = 12;
-
-    // while (this.response[index] != 0) {
-    // index++;
-    // }
-    // byte[] qType = { this.response[index + 1], this.response[index + 2] };
-
-    // // if (this.getQTYPEFromByteArray(qType) != this.queryType) {
-    // // throw new RuntimeException("ERROR\tResponse query type does not match
-    // request query type");
-    // // }
-    // }
-
-    private rDataEntry getDomainFromIndex(int index) {
-        rDataEntry result = new rDataEntry();
-        int wordSize = response[index];
-        String domain = "";
-        boolean start = true;
-        int count = 0;
-        while (wordSize != 0) {
-            if (!start) {
-                domain += ".";
-            }
-            if ((wordSize & 0xC0) == 0xC0) {
-                byte[] offset = { (byte) (response[index] & 0x3F), response[index + 1] };
-                ByteBuffer wrapped = ByteBuffer.wrap(offset);
-                domain += getDomainFromIndex(wrapped.getShort()).getDomain();
-                index += 2;
-                count += 2;
-                wordSize = 0;
-            } else {
-                domain += getWordFromIndex(index);
-                index += wordSize + 1;
-                count += wordSize + 1;
-                wordSize = response[index];
-            }
-            start = false;
-            
-        }
-        // System.out.println("word size = 0 at index: "+index);
-        // System.out.println("domain: "+domain);
-        // System.out.println("count: "+count);
-
-        result.setDomain(domain);
-        result.setBytes(count);
-        return result;
+    public DNSMessageView getView() {
+        return this.view;
     }
 
-    private String getWordFromIndex(int index) {
-        StringBuilder sb = new StringBuilder();
-        int wordSize = response[index];
-        for (int i = 0; i < wordSize; i++) {
-            sb.append((char) response[index + i + 1]);
-        }
-        return sb.toString();
+    public QueryType getQueryType() {
+        return this.queryType;
     }
 
-    private int getBit(byte b, int position) {
-        return (b >> position) & 1;
+    public int getQueryClass() {
+        return view.getQuestionClass();
     }
 
-    private QueryType getQTYPEFromByteArray(byte[] qType) {
-        if (qType[0] == 0) {
-            if (qType[1] == 1) {
-                return QueryType.A;
-            } else if (qType[1] == 2) {
-                return QueryType.NS;
-            } else if (qType[1] == 15) {
-                return QueryType.MX;
-            } else if (qType[1] == 5) {
-                return QueryType.CNAME;
-            } else if (qType[1] == 12) {
-                return QueryType.PTR;
-            } else {
-                return QueryType.OTHER;
-            }
-        } else {
-            return QueryType.OTHER;
-        }
+    public byte[] getID() {
+        return this.ID;
     }
 
-    public QueryType getQueryType() {
-        return this.queryType;
+    public boolean getTC() {
+        return this.TC;
     }
 
     public String getQueryDomainName() {
-        return this.queryDomainName;
+        return view.getQuestionName();
     }
 
     public boolean getRD() {
-        return this.RD;
+        return view.isRecursionDesired();
     }
 
     public int getRCode() {
@@ -577,22 +304,25 @@ public class DNSMessage {
     }
 
     public DNSRecord[] getAdditionalRecords() {
+        materializeRecords();
         return this.additionalRecords;
     }
 
     public DNSRecord[] getAnswerRecords() {
+        materializeRecords();
         return this.answerRecords;
     }
 
     public DNSRecord[] getAuthorityRecords() {
+        materializeRecords();
         return this.authorityRecords;
     }
 
     public byte[] getQuestionAndHeaderBytes() {
-        return this.questionAndHeaderBytes;
+        return Arrays.copyOf(response, view.getQuestionEnd());
     }
 
     public byte[] getAnswerSectionBytes() {
-        return this.answerSectionBytes;
+        return Arrays.copyOfRange(response, view.getQuestionEnd(), response.length);
     }
 }
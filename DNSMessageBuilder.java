@@ -0,0 +1,295 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes a wire format DNS message into a ByteBuffer no larger than a size limit.
+ * Names are compressed against every name suffix already written (RFC 1035
+ * section 4.1.4), so pointers always refer to this message rather than to the
+ * message a record was copied from.
+ *
+ * Sections must be filled in order: header, question, then answer, authority and
+ * additional records. A record that does not fit is left out whole and every
+ * later record is refused. TC is only set when an answer or authority record is
+ * left out; dropping additional records does not make the message truncated, as
+ * RFC 2181 section 9 asks.
+ */
+public class DNSMessageBuilder {
+    public static final int ANSWER = 0;
+    public static final int AUTHORITY = 1;
+    public static final int ADDITIONAL = 2;
+    public static final int MAX_MESSAGE_SIZE = 65535;
+    private static final int TC_FLAG = 0x0200;
+    // pointers hold a 14 bit offset
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+    private static final int TYPE_NS = 2;
+    private static final int TYPE_CNAME = 5;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_PTR = 12;
+    private static final int TYPE_MX = 15;
+
+    private final ByteBuffer buffer;
+    private final int limit;
+    // name suffix to the offset it was first written at, matched case-insensitively
+    private final Map<DnsName, Integer> compression = new HashMap<>();
+    private final int[] counts = new int[3];
+    private int section = ANSWER;
+    private int reserved;
+    private boolean truncated;
+    // set once a record did not fit, later records are refused
+    private boolean full;
+
+    public DNSMessageBuilder(int limit) {
+        this(ByteBuffer.allocate(Math.min(limit, MAX_MESSAGE_SIZE)), limit);
+    }
+
+    /**
+     * Writes into the given buffer, such as a pooled direct buffer, starting at its
+     * beginning. The message is limited to the smaller of limit and the buffer's
+     * capacity.
+     */
+    public DNSMessageBuilder(ByteBuffer target, int limit) {
+        this.limit = Math.min(Math.min(limit, MAX_MESSAGE_SIZE), target.capacity());
+        this.buffer = target;
+        buffer.clear().limit(this.limit);
+    }
+
+    /**
+     * Writes the header. The section counts are filled in by toBytes().
+     *
+     * @param id    the message ID
+     * @param flags the second 16 bits of the header: QR, opcode, AA, TC, RD, RA, Z
+     *              and RCODE
+     */
+    public DNSMessageBuilder header(int id, int flags) {
+        buffer.putShort((short) id);
+        buffer.putShort((short) flags);
+        truncated = (flags & TC_FLAG) != 0;
+        // QDCOUNT, ANCOUNT, NSCOUNT, ARCOUNT
+        buffer.put(new byte[8]);
+        return this;
+    }
+
+    /**
+     * Writes the single question. Header and question always fit, they are never
+     * larger than the query the limit applies to.
+     */
+    public DNSMessageBuilder question(DnsName name, int type, int qclass) {
+        buffer.putShort(4, (short) 1);
+        writeName(name);
+        buffer.putShort((short) type);
+        buffer.putShort((short) qclass);
+        return this;
+    }
+
+    /**
+     * Copies the header flags and question of another message, with a new ID.
+     */
+    public DNSMessageBuilder copyQuestion(int id, DNSMessageView source) {
+        header(id, source.getFlags());
+        if (source.getQDCount() > 0) {
+            question(source.getQuestionDnsName(), source.getQuestionType(), source.getQuestionClass());
+        }
+        return this;
+    }
+
+    /**
+     * Keeps the given number of bytes free for a record added at the very end,
+     * such as an OPT record, so that record always fits.
+     */
+    public void reserve(int bytes) {
+        reserved += bytes;
+        buffer.limit(limit - reserved);
+    }
+
+    /**
+     * Copies a record of another message into the given section. Owner names, and
+     * the names inside NS, CNAME, PTR, MX and SOA data, are decompressed and
+     * compressed again against this message; other data, and data whose names do
+     * not parse, is copied as is.
+     *
+     * @return true if the record was added, false if it did not fit
+     */
+    public boolean copyRecord(int targetSection, DNSMessageView source, int record) {
+        return addRecord(targetSection, source.getDnsName(source.getRecordOffset(record)), source.getRecordType(record),
+                source.getRecordClass(record), source.getTtl(record), source, record);
+    }
+
+    /**
+     * Adds a record with the owner name and TTL given and the data of a record of
+     * another message.
+     *
+     * @return true if the record was added, false if it did not fit
+     */
+    public boolean addRecord(int targetSection, DnsName name, int type, int rclass, int ttl,
+            DNSMessageView source, int record) {
+        if (targetSection < section) {
+            throw new IllegalStateException("Records must be added in section order");
+        }
+        if (full) {
+            return false;
+        }
+        section = targetSection;
+        int mark = buffer.position();
+        try {
+            writeName(name);
+            buffer.putShort((short) type);
+            buffer.putShort((short) rclass);
+            buffer.putInt(ttl);
+            int rdLengthOffset = buffer.position();
+            buffer.putShort((short) 0);
+            try {
+                writeRdata(type, source, record);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                // names in the data do not parse, pass it on as is like data of an unknown type
+                discard(rdLengthOffset + 2);
+                writeOpaque(source, record);
+            }
+            buffer.putShort(rdLengthOffset, (short) (buffer.position() - rdLengthOffset - 2));
+        } catch (BufferOverflowException e) {
+            rollback(mark, targetSection);
+            return false;
+        }
+        counts[targetSection]++;
+        return true;
+    }
+
+    /**
+     * Adds an EDNS0 OPT record to the additional section, using space kept free by
+     * reserve() if any.
+     *
+     * @return true if the record was added, false if it did not fit
+     */
+    public boolean addOptRecord(int udpPayloadSize) {
+        section = ADDITIONAL;
+        buffer.limit(limit);
+        reserved = 0;
+        if (buffer.remaining() < DNSRequest.OPT_RECORD_SIZE) {
+            return false;
+        }
+        // root name, TYPE OPT, CLASS = payload size, extended RCODE, version, flags, no RDATA
+        buffer.put((byte) 0);
+        buffer.putShort((short) DNSMessageView.TYPE_OPT);
+        buffer.putShort((short) udpPayloadSize);
+        buffer.putInt(0);
+        buffer.putShort((short) 0);
+        counts[ADDITIONAL]++;
+        return true;
+    }
+
+    /**
+     * Marks the message truncated, for answers whose source was already incomplete.
+     */
+    public void setTruncated() {
+        truncated = true;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Fills in the section counts and TC and returns the finished message.
+     */
+    public byte[] toBytes() {
+        ByteBuffer message = finish();
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Fills in the section counts and TC and flips the buffer written to, so it
+     * holds the finished message between position and limit, ready to be sent.
+     */
+    public ByteBuffer finish() {
+        buffer.putShort(6, (short) counts[ANSWER]);
+        buffer.putShort(8, (short) counts[AUTHORITY]);
+        buffer.putShort(10, (short) counts[ADDITIONAL]);
+        if (truncated) {
+            buffer.putShort(2, (short) (buffer.getShort(2) | TC_FLAG));
+        }
+        return buffer.flip();
+    }
+
+    private void writeRdata(int type, DNSMessageView source, int record) {
+        int rdata = source.getRdataOffset(record);
+        switch (type) {
+            case TYPE_NS:
+            case TYPE_CNAME:
+            case TYPE_PTR:
+                writeName(source.getDnsName(rdata));
+                break;
+            case TYPE_MX:
+                buffer.putShort((short) source.u16(rdata));
+                writeName(source.getDnsName(rdata + 2));
+                break;
+            case TYPE_SOA:
+                // MNAME and RNAME, then SERIAL REFRESH RETRY EXPIRE MINIMUM
+                int rName = rdata + source.nameLength(rdata);
+                int numbers = rName + source.nameLength(rName);
+                if (numbers + 20 > rdata + source.getRdLength(record)) {
+                    throw new IllegalArgumentException("Malformed DNS message: SOA data runs past its length");
+                }
+                writeName(source.getDnsName(rdata));
+                writeName(source.getDnsName(rName));
+                for (int i = 0; i < 20; i += 4) {
+                    buffer.putInt(source.s32(numbers + i));
+                }
+                break;
+            default:
+                // RFC 3597: data of other types is opaque and never compressed
+                writeOpaque(source, record);
+        }
+    }
+
+    private void writeOpaque(DNSMessageView source, int record) {
+        int rdata = source.getRdataOffset(record);
+        for (int i = 0; i < source.getRdLength(record); i++) {
+            buffer.put((byte) source.u8(rdata + i));
+        }
+    }
+
+    /**
+     * Writes a name, ending in a pointer to the longest suffix already in
+     * the message.
+     */
+    private void writeName(DnsName name) {
+        int labelCount = name.getLabelCount();
+        for (int label = 0; label < labelCount; label++) {
+            DnsName suffix = name.suffix(labelCount - label);
+            Integer pointer = compression.get(suffix);
+            if (pointer != null) {
+                buffer.putShort((short) (0xC000 | pointer));
+                return;
+            }
+            if (buffer.position() <= MAX_POINTER_OFFSET) {
+                compression.put(suffix, buffer.position());
+            }
+            name.writeLabelTo(buffer, label);
+        }
+        buffer.put((byte) 0);
+    }
+
+    private void rollback(int mark, int lostSection) {
+        discard(mark);
+        // the client can do without additional records, only losing the others is truncation
+        if (lostSection != ADDITIONAL) {
+            truncated = true;
+        }
+        full = true;
+    }
+
+    // forgets everything written from mark on, including names offered for compression
+    private void discard(int mark) {
+        buffer.position(mark);
+        Iterator<Integer> offsets = compression.values().iterator();
+        while (offsets.hasNext()) {
+            if (offsets.next() >= mark) {
+                offsets.remove();
+            }
+        }
+    }
+}
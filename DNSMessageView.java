@@ -0,0 +1,423 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Read-only view of a wire format DNS message. Nothing is copied: the constructor
+ * walks the message once to record where the question ends and where each
+ * resource record and its RDATA start, and every other value is read from the
+ * buffer when asked for. Names are decoded on demand into a reusable buffer and
+ * the decoded name at each compression target is remembered, so the owner name
+ * shared by many records is only decoded once per message.
+ *
+ * Record indices run over the answer, authority and additional sections in
+ * order. If the message ends before all records its header announces, only the
+ * complete records are indexed and isTruncated() returns true.
+ */
+public class DNSMessageView {
+    public static final int HEADER_SIZE = 12;
+    public static final int TYPE_OPT = 41;
+    // fixed part of a resource record after its name: TYPE, CLASS, TTL, RDLENGTH
+    private static final int RR_FIXED_SIZE = 10;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private final ByteBuffer buffer;
+    private final int base;
+    private final int limit;
+    private final int questionEnd;
+    private final int[] recordOffsets;
+    private final int[] rdataOffsets;
+    private final int recordCount;
+    private final int length;
+    private final int ednsPayloadSize;
+
+    // decoded names by offset, a small open addressing table grown on demand
+    private int[] nameOffsets;
+    private String[] names;
+    private int nameCount;
+    private char[] nameBuffer;
+
+    /**
+     * Indexes the message between the buffer's position and its limit. The
+     * buffer's position and limit are not changed.
+     *
+     * @throws IllegalArgumentException if the header or question is incomplete
+     */
+    public DNSMessageView(ByteBuffer message) {
+        // fields are read as big endian shorts and ints, whatever order the caller's buffer has
+        this.buffer = message.order() == ByteOrder.BIG_ENDIAN ? message
+                : message.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.base = message.position();
+        this.limit = message.limit() - base;
+        if (limit < HEADER_SIZE) {
+            throw new IllegalArgumentException("Malformed DNS message: incomplete header");
+        }
+
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < getQDCount(); i++) {
+            offset += nameLength(offset) + 4;
+            if (offset > limit) {
+                throw new IllegalArgumentException("Malformed DNS message: incomplete question");
+            }
+        }
+        this.questionEnd = offset;
+
+        // a record takes at least 11 bytes, never index more than could fit
+        int announced = getANCount() + getNSCount() + getARCount();
+        int capacity = Math.min(announced, (limit - offset) / (RR_FIXED_SIZE + 1));
+        this.recordOffsets = new int[capacity];
+        this.rdataOffsets = new int[capacity];
+        int additionalStart = getANCount() + getNSCount();
+        int count = 0;
+        int payloadSize = 0;
+        boolean complete = capacity == announced;
+        while (count < capacity) {
+            int rdata;
+            if (offset + 1 < limit && (u8(offset) & 0xC0) == 0xC0) {
+                // owner names are nearly always a pointer to the question, no need to walk labels
+                rdata = offset + 2 + RR_FIXED_SIZE;
+            } else {
+                try {
+                    rdata = offset + nameLength(offset) + RR_FIXED_SIZE;
+                } catch (IllegalArgumentException e) {
+                    complete = false;
+                    break;
+                }
+            }
+            if (rdata > limit) {
+                complete = false;
+                break;
+            }
+            int end = rdata + u16(rdata - 2);
+            if (end > limit) {
+                complete = false;
+                break;
+            }
+            recordOffsets[count] = offset;
+            rdataOffsets[count] = rdata;
+            if (count >= additionalStart && u16(rdata - RR_FIXED_SIZE) == TYPE_OPT) {
+                // the CLASS field of an OPT record holds the requestor's UDP payload size
+                payloadSize = u16(rdata - 8);
+            }
+            offset = end;
+            count++;
+        }
+        this.recordCount = count;
+        this.length = complete ? offset : 0;
+        this.ednsPayloadSize = payloadSize;
+    }
+
+    public DNSMessageView(byte[] message) {
+        this(ByteBuffer.wrap(message));
+    }
+
+    public int getID() {
+        return u16(0);
+    }
+
+    /**
+     * Returns the second 16 bits of the header: QR, opcode, AA, TC, RD, RA, Z and
+     * RCODE.
+     */
+    public int getFlags() {
+        return u16(2);
+    }
+
+    public boolean isResponse() {
+        return (u8(2) & 0x80) != 0;
+    }
+
+    public boolean isAuthoritative() {
+        return (u8(2) & 0x04) != 0;
+    }
+
+    /**
+     * Returns true if the TC bit is set or the message ends before the records its
+     * header announces.
+     */
+    public boolean isTruncated() {
+        return (u8(2) & 0x02) != 0 || length == 0;
+    }
+
+    public boolean getTCBit() {
+        return (u8(2) & 0x02) != 0;
+    }
+
+    public boolean isRecursionDesired() {
+        return (u8(2) & 0x01) != 0;
+    }
+
+    public boolean isRecursionAvailable() {
+        return (u8(3) & 0x80) != 0;
+    }
+
+    public int getRCode() {
+        return u8(3) & 0x0F;
+    }
+
+    public int getQDCount() {
+        return u16(4);
+    }
+
+    public int getANCount() {
+        return u16(6);
+    }
+
+    public int getNSCount() {
+        return u16(8);
+    }
+
+    public int getARCount() {
+        return u16(10);
+    }
+
+    /**
+     * Returns the offset just past the question section, where the first record
+     * starts.
+     */
+    public int getQuestionEnd() {
+        return questionEnd;
+    }
+
+    public String getQuestionName() {
+        return getName(HEADER_SIZE);
+    }
+
+    public DnsName getQuestionDnsName() {
+        return DnsName.fromWire(this, HEADER_SIZE);
+    }
+
+    public int getQuestionType() {
+        return u16(questionEnd - 4);
+    }
+
+    public int getQuestionClass() {
+        return u16(questionEnd - 2);
+    }
+
+    /**
+     * Returns the number of bytes the message occupies, or 0 if it ends before
+     * all of its records.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public int getEdnsPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    /**
+     * Returns the number of complete records indexed across all three sections.
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public int getRecordOffset(int record) {
+        return recordOffsets[record];
+    }
+
+    public int getRecordLength(int record) {
+        return rdataOffsets[record] + getRdLength(record) - recordOffsets[record];
+    }
+
+    public String getRecordName(int record) {
+        return getName(recordOffsets[record]);
+    }
+
+    public int getRecordType(int record) {
+        return u16(rdataOffsets[record] - 10);
+    }
+
+    public int getRecordClass(int record) {
+        return u16(rdataOffsets[record] - 8);
+    }
+
+    public int getTtlOffset(int record) {
+        return rdataOffsets[record] - 6;
+    }
+
+    public int getTtl(int record) {
+        return s32(rdataOffsets[record] - 6);
+    }
+
+    public int getRdataOffset(int record) {
+        return rdataOffsets[record];
+    }
+
+    public int getRdLength(int record) {
+        return u16(rdataOffsets[record] - 2);
+    }
+
+    /**
+     * Returns the number of bytes the name at offset occupies in the message,
+     * including its terminating zero byte or compression pointer.
+     *
+     * @throws IllegalArgumentException if the name runs past the end of the message
+     */
+    public int nameLength(int offset) {
+        int position = offset;
+        while (true) {
+            if (position >= limit) {
+                throw new IllegalArgumentException("Malformed DNS message: name runs past the end");
+            }
+            int labelLength = u8(position);
+            if (labelLength == 0) {
+                return position + 1 - offset;
+            }
+            if ((labelLength & 0xC0) == 0xC0) {
+                return position + 2 - offset;
+            }
+            position += labelLength + 1;
+        }
+    }
+
+    /**
+     * Reads the possibly compressed name at offset as a DnsName.
+     *
+     * @throws IllegalArgumentException on a malformed name or compression loop
+     */
+    public DnsName getDnsName(int offset) {
+        return DnsName.fromWire(this, offset);
+    }
+
+    /**
+     * Decodes the possibly compressed name at offset in dotted form without the
+     * trailing dot, the root name being the empty string.
+     *
+     * @throws IllegalArgumentException on a malformed name or compression loop
+     */
+    public String getName(int offset) {
+        String known = lookupName(offset);
+        if (known != null) {
+            return known;
+        }
+        if (nameBuffer == null) {
+            nameBuffer = new char[MAX_NAME_LENGTH];
+        }
+        int used = 0;
+        int position = offset;
+        // compression targets followed and where their suffix starts in nameBuffer
+        int[] targets = null;
+        int[] suffixStarts = null;
+        int jumps = 0;
+        String tail = null;
+        while (true) {
+            if (position >= limit) {
+                throw new IllegalArgumentException("Malformed DNS message: name runs past the end");
+            }
+            int labelLength = u8(position);
+            if (labelLength == 0) {
+                break;
+            }
+            if ((labelLength & 0xC0) == 0xC0) {
+                if (position + 1 >= limit) {
+                    throw new IllegalArgumentException("Malformed DNS message: name runs past the end");
+                }
+                int target = ((labelLength & 0x3F) << 8) | u8(position + 1);
+                if (target >= position) {
+                    // pointers must point backwards, anything else could loop forever
+                    throw new IllegalArgumentException("Malformed DNS message: bad compression pointer");
+                }
+                tail = lookupName(target);
+                if (tail != null) {
+                    break;
+                }
+                if (targets == null) {
+                    targets = new int[8];
+                    suffixStarts = new int[8];
+                } else if (jumps == targets.length) {
+                    targets = Arrays.copyOf(targets, jumps * 2);
+                    suffixStarts = Arrays.copyOf(suffixStarts, jumps * 2);
+                }
+                targets[jumps] = target;
+                suffixStarts[jumps] = used == 0 ? 0 : used + 1;
+                jumps++;
+                position = target;
+                continue;
+            }
+            if (position + labelLength >= limit) {
+                throw new IllegalArgumentException("Malformed DNS message: name runs past the end");
+            }
+            if (used + labelLength + 1 > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Malformed DNS message: name too long");
+            }
+            if (used > 0) {
+                nameBuffer[used++] = '.';
+            }
+            for (int i = 1; i <= labelLength; i++) {
+                nameBuffer[used++] = (char) u8(position + i);
+            }
+            position += labelLength + 1;
+        }
+
+        String name;
+        if (tail == null || tail.isEmpty()) {
+            name = new String(nameBuffer, 0, used);
+        } else if (used == 0) {
+            name = tail;
+        } else {
+            name = new String(nameBuffer, 0, used) + "." + tail;
+        }
+        for (int i = 0; i < jumps; i++) {
+            rememberName(targets[i], suffixStarts[i] >= name.length() ? "" : name.substring(suffixStarts[i]));
+        }
+        rememberName(offset, name);
+        return name;
+    }
+
+    private String lookupName(int offset) {
+        if (nameOffsets == null) {
+            return null;
+        }
+        int mask = nameOffsets.length - 1;
+        for (int slot = offset & mask; names[slot] != null; slot = (slot + 1) & mask) {
+            if (nameOffsets[slot] == offset) {
+                return names[slot];
+            }
+        }
+        return null;
+    }
+
+    private void rememberName(int offset, String name) {
+        if (nameOffsets == null) {
+            nameOffsets = new int[16];
+            names = new String[16];
+        } else if ((nameCount + 1) * 2 > nameOffsets.length) {
+            int[] oldOffsets = nameOffsets;
+            String[] oldNames = names;
+            nameOffsets = new int[oldOffsets.length * 2];
+            names = new String[oldOffsets.length * 2];
+            nameCount = 0;
+            for (int i = 0; i < oldOffsets.length; i++) {
+                if (oldNames[i] != null) {
+                    rememberName(oldOffsets[i], oldNames[i]);
+                }
+            }
+        }
+        int mask = nameOffsets.length - 1;
+        int slot = offset & mask;
+        while (names[slot] != null) {
+            if (nameOffsets[slot] == offset) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        nameOffsets[slot] = offset;
+        names[slot] = name;
+        nameCount++;
+    }
+
+    public int u8(int offset) {
+        return buffer.get(base + offset) & 0xFF;
+    }
+
+    public int u16(int offset) {
+        return buffer.getShort(base + offset) & 0xFFFF;
+    }
+
+    public int s32(int offset) {
+        return buffer.getInt(base + offset);
+    }
+}
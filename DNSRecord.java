@@ -6,6 +6,8 @@ public class DNSRecord {
 	private boolean auth;
 	private boolean truncated;
 	private int byteLength;
+	// position of the record and of its TTL field in the message it was parsed from
+	private int offset;
 
 	public DNSRecord(boolean auth, boolean truncated) {
 		this.auth = auth;
@@ -104,6 +106,14 @@ public class DNSRecord {
 		this.byteLength = byteLength;
 	}
 
+	public int getOffset() {
+		return offset;
+	}
+
+	public void setOffset(int offset) {
+		this.offset = offset;
+	}
+
 	public int getTimeToLive() {
 		return timeToLive;
 	}
@@ -1,11 +1,17 @@
 import java.nio.ByteBuffer;
-import java.util.Random;
 
 public class DNSRequest {
 
 	private final String domain;
+	private final DnsName name;
 	private final QueryType qtype;
 	private final boolean RDFlag;
+	public static final int OPT_TYPE = 41;
+	public static final int OPT_RECORD_SIZE = 11;
+	private static final int HEADER_SIZE = 12;
+	private static final int CLASS_IN = 1;
+	// unknown types have always gone out as TYPE 15, kept so OTHER queries behave as before
+	private static final int OTHER_WIRE_TYPE = 0x000F;
 
 	// public DNSRequest(String domain, QueryType type) {
 	// 	this.domain = domain;
@@ -18,50 +24,83 @@ public class DNSRequest {
 		} else {
 			this.domain = domain;
 		}
+		this.name = DnsName.of(this.domain);
+		this.qtype = type;
+		this.RDFlag = RDFlag;
+	}
+
+	/**
+	 * Creates a request for a name already in its final form, such as the question
+	 * of a received message. PTR names are not reversed.
+	 */
+	public DNSRequest(DnsName name, QueryType type, boolean RDFlag) {
+		this.name = name;
+		this.domain = name.toString();
 		this.qtype = type;
 		this.RDFlag = RDFlag;
 	}
 	public byte[] getRequestBytes() {
-		int qNameLength = getQNameLength();
-		// 12 bytes for header, 4 bytes for QTYPE + QCLASS, 1 byte for end of QNAME, qNameLength for QNAME
-		ByteBuffer request = ByteBuffer.allocate(12 + 5 + qNameLength);
-		request.put(createRequestHeader()); // 12 bytes header section
-		request.put(createQuestionSection(qNameLength)); // get Question Section
-		return request.array();
+		return getRequestBytes(0);
 	}
 
-	private byte[] createRequestHeader() {
-		ByteBuffer header = ByteBuffer.allocate(12);
-		byte[] randomID = new byte[2];
-		new Random().nextBytes(randomID);
-		header.put(randomID);
-		// QR Opcode AA TC RD 
-		// all set as 0
-		if (RDFlag) {
-			header.put((byte) 0x01);
-		} else {
-			header.put((byte) 0x00);
-		}
-		// RA Z RCode
-		header.put((byte) 0x00);
-		
-		// QDCOUNT set as 1 to show it has 1 question
-		header.put((byte) 0x00);
-		header.put((byte) 0x01);
-		
-		// ANCOUNT NSCOUNT ARCOUNT will be all 0s
-		return header.array();
+	/**
+	 * Returns the request with an EDNS0 OPT record (RFC 6891) in the additional
+	 * section advertising the given UDP payload size. The header and question are
+	 * the same as in getRequestBytes(), so responses are parsed the same way.
+	 *
+	 * @param udpPayloadSize the largest UDP response this side can receive
+	 * @return the request bytes including the OPT record
+	 */
+	public byte[] getRequestBytes(int udpPayloadSize) {
+		byte[] request = new byte[getEncodedLength(udpPayloadSize)];
+		encode(ByteBuffer.wrap(request), udpPayloadSize);
+		return request;
 	}
-	
-	private int getQNameLength() {
-		int byteLength = 0;
-		String[] items = domain.split("\\.");
-		for (int i = 0; i < items.length; i++) {
-			// 1 byte length for the number value and then another for each character
-			// www.unsw.edu.au = 3, w, w, w, 4, u, n, s, w, 3, e, d, u, 2, a, u = 16 bytes
-			byteLength += items[i].length() + 1;
+
+	/**
+	 * Writes the request at the buffer's position: header, question and, unless
+	 * udpPayloadSize is 0, an EDNS0 OPT record. Nothing is allocated, the ID is
+	 * drawn from QueryIdSource and the name is copied in wire format as it is.
+	 *
+	 * @param out            the buffer to write to, with at least
+	 *                       getEncodedLength(udpPayloadSize) bytes remaining
+	 * @param udpPayloadSize the UDP payload size to advertise, 0 for none
+	 * @return the number of bytes written
+	 */
+	public int encode(ByteBuffer out, int udpPayloadSize) {
+		int start = out.position();
+		out.putShort((short) QueryIdSource.next());
+		// QR Opcode AA TC RD, only RD may be set
+		out.put(RDFlag ? (byte) 0x01 : (byte) 0x00);
+		// RA Z RCode
+		out.put((byte) 0x00);
+		// QDCOUNT 1, ANCOUNT and NSCOUNT 0, ARCOUNT 1 if an OPT record follows
+		out.putShort((short) 1);
+		out.putInt(0);
+		out.putShort((short) (udpPayloadSize > 0 ? 1 : 0));
+
+		// labels and the terminating zero byte, already in wire format
+		name.writeTo(out);
+		out.putShort((short) getWireType());
+		out.putShort((short) CLASS_IN);
+
+		if (udpPayloadSize > 0) {
+			// root name, TYPE OPT, CLASS = payload size, extended RCODE, version and flags all 0, no RDATA
+			out.put((byte) 0x00);
+			out.putShort((short) OPT_TYPE);
+			out.putShort((short) udpPayloadSize);
+			out.putInt(0);
+			out.putShort((short) 0);
 		}
-		return byteLength;
+		return out.position() - start;
+	}
+
+	/**
+	 * Returns the number of bytes encode() writes for the given payload size.
+	 */
+	public int getEncodedLength(int udpPayloadSize) {
+		// header, QNAME, QTYPE and QCLASS, then the OPT record if any
+		return HEADER_SIZE + name.getWireLength() + 4 + (udpPayloadSize > 0 ? OPT_RECORD_SIZE : 0);
 	}
 	
 	// private byte[] creatPTRQuestionSection(int qNameLength) {
@@ -90,86 +129,34 @@ public class DNSRequest {
 
 	// 	return question.array();
 	// }
-	private void reverseArray(String[] items) {
-		int start = 0;
-		int end = items.length -1;
-		while (start < end) {
-			String temp = items[start];
-			items[start] = items[end];
-			items[end] = temp;
-
-			start++;
-			end--;
-		}
-	}
 	private String generatePTRQueryDomain(String queryString) {
-		StringBuilder sb = new StringBuilder();
-		String[] items = queryString.split("\\.");
-		reverseArray(items);
-		
-		for (String item : items) {
-			sb.append(item);
+		int end = queryString.endsWith(".") ? queryString.length() - 1 : queryString.length();
+		StringBuilder sb = new StringBuilder(end + 14);
+		// labels in reverse order, found by scanning back for dots
+		while (end > 0) {
+			int dot = queryString.lastIndexOf('.', end - 1);
+			sb.append(queryString, dot + 1, end);
 			sb.append('.');
+			end = dot;
 		}
 		sb.append("in-addr.arpa");
 		return sb.toString();
 	}
-	private byte[] createQuestionSection(int qNameLength) {
-		ByteBuffer question = ByteBuffer.allocate(qNameLength + 5);
-		
-
-		String[] items = domain.split("\\.");
-		
-		for (int i = 0; i < items.length; i++) {
-			question.put((byte) items[i].length());
-			for (int j = 0; j < items[i].length(); j++) {
-				question.put((byte) ((int) items[i].charAt(j)));
-			}
-		}
-
-		question.put((byte) 0x00);
-
-
-		// Add Query Type
-		question.put(hexStringToByteArray("000" + hexValueFromQueryType(qtype)));
-		
-		// Add Query Class IN
-		question.put((byte) 0x00);
-		question.put((byte) 0x01);
-
-		return question.array();
-	}
-
-	private char hexValueFromQueryType(QueryType type) {
-		switch (type) {
-			case A:
-				return '1';
-			case NS:
-				return '2';
-			case CNAME:
-				return '5';
-			case PTR:
-				return 'c';
-			case MX:
-				return 'f';
-			default:
-				return 'F';
-		}
-
+	public String getDomain() {
+		return this.domain;
 	}
-
-	private static byte[] hexStringToByteArray(String s) {
-		int len = s.length();
-		byte[] data = new byte[len / 2];
-		for (int i = 0; i < len; i += 2) {
-			data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-					+ Character.digit(s.charAt(i + 1), 16));
-		}
-		return data;
+	public DnsName getName() {
+		return this.name;
 	}
 	public QueryType getQueryType() {
 		return this.qtype;
 	}
+	/**
+	 * Returns the QTYPE value the request is sent with.
+	 */
+	public int getWireType() {
+		return qtype == QueryType.OTHER ? OTHER_WIRE_TYPE : qtype.getCode();
+	}
 	public boolean getRDFlag() {
 		return this.getRDFlag();
 	}
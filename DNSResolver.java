@@ -2,38 +2,174 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class DNSResolver {
     private int port;
     private static final int MAX_DNS_PACKET_SIZE = 512;
     private final List<DNSRecord> rootList = new ArrayList<>();
     private static final String HINT_FILE_PATH = "./named.root";
-    private static final int TIMEOUT = 500;
+    private static final String USAGE = "Usage: Resolver <port> [neg-ttl-cap=<seconds>] [hedge-delay=<ms>]"
+            + " [stale-window=<seconds>] [stale-deadline=<ms>] [edns-size=<bytes>] [cache-size=<megabytes>]"
+            + " [listeners=<count, 0 for one per core>] [snapshot-interval=<seconds, 0 to disable>]"
+            + " [metrics-port=<port, 0 to disable>]";
+    // each in-flight client query holds one worker thread while it walks the hierarchy
+    private static final int WORKER_THREADS = 1024;
+    private static final int MAX_PENDING_QUERIES = 8192;
+    // backlog full, the listener drops the query and lets the client retransmit
+    private final ExecutorService workers = createWorkerPool("resolver-worker", WORKER_THREADS, MAX_PENDING_QUERIES,
+            new ThreadPoolExecutor.AbortPolicy());
+    // upstream queries share a few channels on random ports instead of a socket per hop
+    private static final int UPSTREAM_CHANNELS = 8;
+    private static final int DNS_PORT = 53;
+    private final UpstreamTransport transport;
+    // truncated UDP responses are fetched again over TCP
+    private static final int TCP_CONNECT_TIMEOUT = 1000;
+    private static final int TCP_READ_TIMEOUT = 2000;
+    private final TcpTransport tcpTransport = new TcpTransport(TCP_CONNECT_TIMEOUT, TCP_READ_TIMEOUT);
+    private static final int CLASS_IN = 1;
+    private static final int TYPE_CNAME = 5;
+    private static final int TC_FLAG = 0x0200;
+    private static final int RCODE_MASK = 0x000F;
+    private static final int RCODE_FORMAT_ERROR = 1;
+    private static final int RCODE_SERVER_FAILURE = 2;
+    private static final int RCODE_NOT_IMPLEMENTED = 4;
+    // longest CNAME chain followed, longer chains and loops are answered with SERVFAIL
+    private static final int MAX_CNAME_CHAIN = 8;
+    // direct memory for cached answers, off the heap so a large cache does not slow the GC
+    private static final long DEFAULT_CACHE_SIZE = 128L << 20;
+    private final RecordCache recordCache = new RecordCache(DEFAULT_CACHE_SIZE);
+    private final DelegationCache delegationCache = new DelegationCache();
+    // identical questions attach to the one outstanding resolution instead of starting their own
+    private static final int COALESCED_WAIT = 5000;
+    private final Map<CacheKey, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+    // (client address, ID, question) of client queries currently being answered
+    private final Set<QueryKey> activeClientQueries = ConcurrentHashMap.newKeySet();
+    // delay before the next slist server is queried in parallel, 0 queries strictly in turn
+    private volatile int hedgeDelay = 100;
+    private final ServerStatsTable serverStats = new ServerStatsTable();
+    // popular entries are refreshed off the request path, bounded so prefetching
+    // never takes more than a few upstream resolutions at a time
+    private static final int MAX_PREFETCHES = 16;
+    private final Semaphore prefetchPermits = new Semaphore(MAX_PREFETCHES);
+    // prefetches and refreshes behind stale answers, rejected rather than dropped when full
+    private static final int BACKGROUND_THREADS = 64;
+    private final ExecutorService backgroundResolver = createWorkerPool("resolver-background", BACKGROUND_THREADS,
+            BACKGROUND_THREADS * 4, new ThreadPoolExecutor.AbortPolicy());
+    // address lookups for the name servers of a glueless referral run in parallel. A lookup
+    // can itself hit a glueless referral, so there is no backlog to wait in: when every
+    // thread is busy the referral's own thread runs the lookup
+    private static final int NS_LOOKUP_THREADS = 64;
+    private static final int NS_LOOKUP_TIMEOUT = 5000;
+    private final ExecutorService nsLookups = createWorkerPool("resolver-ns-lookup", NS_LOOKUP_THREADS, 0,
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    // serve-stale (RFC 8767): how long a client waits for a fresh answer before an
+    // expired one is served, and the TTL that expired answer is given
+    private static final int STALE_TTL = 30;
+    private volatile int staleDeadline = 1800;
+    // EDNS0 UDP payload size advertised upstream and the largest answer given to an EDNS0 client,
+    // 1232 bytes fits the IPv6 minimum MTU so large answers are not fragmented
+    private volatile int udpPayloadSize = 1232;
+    // free client buffers kept for reuse, enough for every worker to hold two
+    private static final int MAX_POOLED_BUFFERS = 2 * WORKER_THREADS;
+    // channels bound to the client port with SO_REUSEPORT, each read by its own thread
+    // so the kernel spreads incoming queries over them
+    private int listeners = 1;
+    // the caches are written to disk every snapshotInterval seconds and at shutdown, and read
+    // back at startup so a restart does not begin by walking the hierarchy for every name
+    private static final String SNAPSHOT_FILE_PATH = "./resolver-cache.snapshot";
+    private int snapshotInterval = 300;
+    private CacheSnapshot snapshot;
+    // counters and latency histograms, exported as MBeans and, when metricsPort is set,
+    // in Prometheus text format at http://host:metricsPort/metrics
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private int metricsPort = 0;
+    private final Counter queriesReceived = metrics.counter("queries_received", "Client queries received");
+    private final Counter retransmissionsDropped = metrics.counter("retransmissions_dropped",
+            "Client retransmissions dropped while the first copy was being answered");
+    private final Counter responsesSent = metrics.counter("responses_sent", "Answers sent to clients");
+    private final Counter queryErrors = metrics.counter("query_errors", "Client queries left unanswered");
+    private final Counter cacheHits = metrics.counter("cache_hits", "Client queries answered from the cache");
+    private final Counter cacheMisses = metrics.counter("cache_misses", "Client queries not in the cache");
+    private final Counter staleAnswers = metrics.counter("stale_answers", "Expired answers served stale");
+    private final Counter upstreamQueries = metrics.counter("upstream_queries", "Queries sent to name servers");
+    private final Counter upstreamTimeouts = metrics.counter("upstream_timeouts",
+            "Queries to name servers unanswered within their RTO");
+    private final Counter tcpRetries = metrics.counter("tcp_retries", "Truncated answers fetched again over TCP");
+    private final Counter ednsFallbacks = metrics.counter("edns_fallbacks",
+            "Queries asked again without OPT after the server rejected EDNS0");
+    private final Counter referrals = metrics.counter("referrals", "Referrals followed to a child zone");
+    private final Counter cnameChains = metrics.counter("cname_chains", "CNAME chains followed");
+    private final Counter snapshotFailures = metrics.counter("snapshot_failures",
+            "Cache snapshots that failed to write");
+    private final LatencyHistogram queueWait = metrics.histogram("client_queue_wait",
+            "Time from receiving a client query to a worker starting on it");
+    private final LatencyHistogram queryLatency = metrics.histogram("client_query",
+            "Time from receiving a client query to sending its answer");
+    private final LatencyHistogram cacheLookup = metrics.histogram("cache_lookup", "Record cache lookups");
+    private final LatencyHistogram upstreamHop = metrics.histogram("upstream_hop",
+            "One step of a resolution, querying an slist until a server answers");
+    private final LatencyHistogram referralHandling = metrics.histogram("referral",
+            "Turning a referral into the next slist, glueless name server lookups included");
+    private final LatencyHistogram cnameFollowing = metrics.histogram("cname_follow",
+            "Following a CNAME chain to its final answer");
+    private final LatencyHistogram responseSend = metrics.histogram("response_send",
+            "Encoding and sending an answer to the client");
 
     public DNSResolver(String[] args) {
+        try {
+            this.transport = new UpstreamTransport(UPSTREAM_CHANNELS, metrics.counter("upstream_receive_errors",
+                    "Failed receives on the upstream UDP channels"));
+        } catch (IOException e) {
+            throw new RuntimeException("ERROR: could not open upstream channels: " + e.getMessage());
+        }
         this.readHintFile();
         run(args);
     }
     public void run(String[] args) {
         try {
             this.parseInputArguments(args);
+            this.startSnapshots();
+            this.startMetricsEndpoint();
             this.receiveAndResolve();
         } catch (SocketTimeoutException e) {
             System.out.println("Socket timed out during iterative query");
             run(args);
         } catch (IOException e) {
             // e.printStackTrace();
-            throw new IllegalArgumentException(
-                    "Usage: Resolver <port>");
+            throw new IllegalArgumentException(USAGE);
         }
         
     }
@@ -70,75 +206,481 @@ public class DNSResolver {
 
     private void parseInputArguments(String[] args) {
         List<String> argsList = Arrays.asList(args);
-        if (argsList.size() == 1) {
+        if (!argsList.isEmpty()) {
             if (argsList.get(0).matches("\\d+")) {
                 port = Integer.parseInt(argsList.get(0));
             } else {
                 throw new IllegalArgumentException("Error: invalid port number.");
             }
+            // optional tuning arguments in the form name=value
+            for (String option : argsList.subList(1, argsList.size())) {
+                parseOption(option);
+            }
         } else {
-            System.out.println("Usage: Resolver <port>");
+            System.out.println(USAGE);
             throw new IllegalArgumentException("Error: Wrong number of argument");
         }
     }
 
-    public void receiveAndResolve() throws IOException {
-        try (DatagramSocket socket = new DatagramSocket(port)) {
-            while (true) {
-                // create a datagrampacket to store client request from udp socket
-                DatagramPacket clientRequestPacket = new DatagramPacket(new byte[MAX_DNS_PACKET_SIZE],
-                        MAX_DNS_PACKET_SIZE);
+    private void parseOption(String option) {
+        String[] nameAndValue = option.split("=", 2);
+        if (nameAndValue.length != 2 || !nameAndValue[1].matches("\\d+")) {
+            throw new IllegalArgumentException("Error: invalid option " + option);
+        }
+        int value = Integer.parseInt(nameAndValue[1]);
+        switch (nameAndValue[0]) {
+            case "neg-ttl-cap":
+                // upper bound in seconds for cached NXDOMAIN and NODATA answers
+                recordCache.setNegativeTtlCap(value);
+                break;
+            case "hedge-delay":
+                hedgeDelay = value;
+                break;
+            case "stale-window":
+                // how long in seconds expired answers are kept for serve-stale
+                recordCache.setStaleWindow(value);
+                break;
+            case "stale-deadline":
+                staleDeadline = value;
+                break;
+            case "edns-size":
+                if (value < MAX_DNS_PACKET_SIZE || value > 65535) {
+                    throw new IllegalArgumentException("Error: edns-size must be between 512 and 65535");
+                }
+                udpPayloadSize = value;
+                break;
+            case "cache-size":
+                if (value < 1) {
+                    throw new IllegalArgumentException("Error: cache-size must be at least 1 megabyte");
+                }
+                recordCache.setMemoryBudget((long) value << 20);
+                break;
+            case "listeners":
+                listeners = value == 0 ? Runtime.getRuntime().availableProcessors() : value;
+                break;
+            case "snapshot-interval":
+                snapshotInterval = value;
+                break;
+            case "metrics-port":
+                if (value > 65535) {
+                    throw new IllegalArgumentException("Error: invalid metrics-port " + value);
+                }
+                metricsPort = value;
+                break;
+            default:
+                throw new IllegalArgumentException("Error: unknown option " + nameAndValue[0]);
+        }
+    }
 
-                // receive request from client
-                socket.receive(clientRequestPacket);
-                SocketAddress clientSocketAddress = clientRequestPacket.getSocketAddress();
+    private void startSnapshots() {
+        if (snapshotInterval == 0 || snapshot != null) {
+            return;
+        }
+        snapshot = new CacheSnapshot(Paths.get(SNAPSHOT_FILE_PATH), recordCache, delegationCache);
+        ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "resolver-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the snapshot is loaded in the background while queries are already answered,
+        // and the first write waits for the load on the same thread
+        snapshots.execute(() -> {
+            try {
+                snapshot.load();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("ERROR when loading cache snapshot: " + e.getMessage());
+            }
+        });
+        snapshots.scheduleWithFixedDelay(this::writeSnapshot, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::writeSnapshot, "resolver-snapshot-shutdown"));
+    }
 
-                // parsing client request
-                byte[] clientRequestBytes = clientRequestPacket.getData();
-                DNSMessage clientMessage = new DNSMessage(clientRequestBytes);
-                // System.out.println("=======>Request received<=======");
-                DNSRequest clientDnsRequest = parseClientQueryAndPrint(clientMessage);
-                DatagramPacket finalResponsePacket = resolve(clientDnsRequest);
+    private void writeSnapshot() {
+        try {
+            snapshot.write();
+        } catch (IOException | RuntimeException e) {
+            // a failed write must not cancel the later ones, but it must not go unnoticed either
+            snapshotFailures.increment();
+            System.err.println("ERROR when writing cache snapshot " + SNAPSHOT_FILE_PATH + ": " + e);
+            e.printStackTrace();
+        }
+    }
 
-                // System.out.println();
-                // System.out.println("checkpoint: sending result to client: ");
-                // DNSMessage finalmsg = new DNSMessage(finalResponsePacket.getData(),
-                // clientDnsRequest.getRequestBytes().length,
-                // clientDnsRequest.getQueryType());
-                // finalmsg.outputResponse();
+    private void startMetricsEndpoint() {
+        if (metricsPort == 0) {
+            return;
+        }
+        try {
+            metrics.startHttpServer(metricsPort);
+        } catch (IOException e) {
+            // resolving goes on, the metrics are still available over JMX
+            System.out.println("ERROR: could not start metrics endpoint: " + e.getMessage());
+        }
+    }
 
-                finalResponsePacket.setSocketAddress(clientSocketAddress);
+    public void receiveAndResolve() throws IOException {
+        // one buffer size serves both the client's query and our answer, neither is
+        // larger than our EDNS0 payload size
+        BufferPool clientBuffers = new BufferPool(udpPayloadSize, MAX_POOLED_BUFFERS);
+        List<DatagramChannel> channels = openListeners(listeners);
+        try {
+            // every listener shares the workers, caches and upstream transports
+            for (int i = 1; i < channels.size(); i++) {
+                DatagramChannel channel = channels.get(i);
+                Thread listener = new Thread(() -> {
+                    try {
+                        receiveLoop(channel, clientBuffers);
+                    } catch (IOException e) {
+                        System.out.println("ERROR on client listener: " + e.getMessage());
+                    }
+                }, "resolver-listener-" + i);
+                listener.setDaemon(true);
+                listener.start();
+            }
+            receiveLoop(channels.get(0), clientBuffers);
+        } finally {
+            for (DatagramChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
 
-                socket.send(finalResponsePacket);
-                System.out.println("===>Client DNS Query Resolved<===");
-                System.out.println();
+    private List<DatagramChannel> openListeners(int count) throws IOException {
+        List<DatagramChannel> channels = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+                channels.add(channel);
+                if (count > 1) {
+                    if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        throw new IllegalArgumentException("Error: SO_REUSEPORT is not supported, use listeners=1");
+                    }
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.bind(new InetSocketAddress(port));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (DatagramChannel channel : channels) {
+                channel.close();
             }
+            throw e;
         }
+        return channels;
     }
 
-    private DNSRequest parseClientQueryAndPrint(DNSMessage clientRequestMessage) {
-        String queryDomainName = clientRequestMessage.getQueryDomainName();
-        QueryType queryType = clientRequestMessage.getQueryType();
+    private void receiveLoop(DatagramChannel channel, BufferPool clientBuffers) throws IOException {
+        while (true) {
+            // receive request from client into a pooled buffer, returned once answered
+            ByteBuffer clientRequest = clientBuffers.acquire();
+            SocketAddress clientSocketAddress = channel.receive(clientRequest);
+            long receivedAt = System.nanoTime();
+            queriesReceived.increment();
+            clientRequest.flip();
+
+            // hand the query to a worker so one slow referral chain does not stall
+            // every other client, each listening channel is only read from its own thread
+            try {
+                workers.execute(() -> handleClientQuery(channel, clientBuffers, clientSocketAddress,
+                        clientRequest, receivedAt));
+            } catch (RejectedExecutionException e) {
+                // the task never runs, so its buffer is handed back here
+                clientBuffers.release(clientRequest);
+            }
+        }
+    }
+
+    private void handleClientQuery(DatagramChannel channel, BufferPool clientBuffers,
+            SocketAddress clientSocketAddress, ByteBuffer clientRequest, long receivedAt) {
+        queueWait.recordSince(receivedAt);
+        QueryKey clientQueryKey = QueryKey.of((InetSocketAddress) clientSocketAddress, clientRequest);
+        if (clientQueryKey != null && !activeClientQueries.add(clientQueryKey)) {
+            // the client retransmitted a query we are still working on, the answer to
+            // the first copy carries the same ID so this one can be dropped
+            System.out.println("Ignoring retransmitted client query");
+            retransmissionsDropped.increment();
+            clientBuffers.release(clientRequest);
+            return;
+        }
+        ByteBuffer clientResponse = null;
+        try {
+            // parsing client request in place
+            DNSMessageView clientMessage = new DNSMessageView(clientRequest);
+            // System.out.println("=======>Request received<=======");
+            DNSRequest clientDnsRequest = parseClientQueryAndPrint(clientMessage);
+            DatagramPacket finalResponsePacket = resolveCached(clientDnsRequest);
+
+            // plain DNS clients accept 512 bytes, EDNS0 clients what their OPT record advertises
+            // up to our own payload size
+            int clientPayloadSize = clientMessage.getEdnsPayloadSize();
+            boolean clientEdns = clientPayloadSize > 0;
+            int limit = clientEdns
+                    ? Math.min(Math.max(clientPayloadSize, MAX_DNS_PACKET_SIZE), udpPayloadSize)
+                    : MAX_DNS_PACKET_SIZE;
+            // answer with the client's own ID, upstream queries use their own random IDs
+            long sendStart = System.nanoTime();
+            DNSMessageView response = new DNSMessageView(
+                    ByteBuffer.wrap(finalResponsePacket.getData(), 0, finalResponsePacket.getLength()));
+            clientResponse = DNSMessage.encodeForClient(response, clientMessage.getID(), clientBuffers.acquire(),
+                    limit, clientEdns ? udpPayloadSize : 0);
+
+            channel.send(clientResponse, clientSocketAddress);
+            responseSend.recordSince(sendStart);
+            queryLatency.recordSince(receivedAt);
+            responsesSent.increment();
+            System.out.println("===>Client DNS Query Resolved<===");
+            System.out.println();
+        } catch (SocketTimeoutException e) {
+            System.out.println("Socket timed out during iterative query");
+            queryErrors.increment();
+        } catch (IOException e) {
+            System.out.println("ERROR when sending response to client: " + e.getMessage());
+            queryErrors.increment();
+        } catch (RuntimeException e) {
+            System.out.println("ERROR when resolving client query: " + e.getMessage());
+            queryErrors.increment();
+        } finally {
+            if (clientQueryKey != null) {
+                activeClientQueries.remove(clientQueryKey);
+            }
+            clientBuffers.release(clientRequest);
+            clientBuffers.release(clientResponse);
+        }
+    }
+
+    private static ExecutorService createWorkerPool(String name, int threads, int maxPending,
+            RejectedExecutionHandler whenFull) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                30L, TimeUnit.SECONDS,
+                // without a backlog a task either gets a thread at once or is rejected
+                maxPending > 0 ? new ArrayBlockingQueue<>(maxPending) : new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                whenFull);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private DNSRequest parseClientQueryAndPrint(DNSMessageView clientRequestMessage) {
+        DnsName queryDomainName = clientRequestMessage.getQuestionDnsName();
+        QueryType queryType = QueryType.fromCode(clientRequestMessage.getQuestionType());
         System.out.println("=======>Client Request<=======");
         System.out.println("Domain:\t" + queryDomainName);
         System.out.println("QueryType:\t" + queryType);
-        return new DNSRequest(queryDomainName, queryType, clientRequestMessage.getRD());
+        return new DNSRequest(queryDomainName, queryType, clientRequestMessage.isRecursionDesired());
+    }
+
+    /**
+     * Answers the request from the record cache if possible, otherwise resolves it
+     * iteratively and caches the response.
+     *
+     * @param dnsRequest the request to answer
+     * @return the response packet, with TTLs decremented when served from cache
+     */
+    private DatagramPacket resolveCached(DNSRequest dnsRequest) throws SocketTimeoutException {
+        CacheKey key = new CacheKey(dnsRequest.getName(), dnsRequest.getQueryType(), CLASS_IN);
+        long lookupStart = System.nanoTime();
+        CacheEntry cached = recordCache.get(key);
+        cacheLookup.recordSince(lookupStart);
+        if (cached != null) {
+            cacheHits.increment();
+            System.out.println((cached.isNegative() ? "Answered from negative cache: " : "Answered from cache: ")
+                    + key);
+            long now = System.currentTimeMillis();
+            if (recordCache.recordHitAndCheckPrefetch(key, now)) {
+                prefetch(key, dnsRequest);
+            }
+            byte[] responseBytes = cached.toResponse(now);
+            return new DatagramPacket(responseBytes, responseBytes.length);
+        }
+        cacheMisses.increment();
+
+        CompletableFuture<byte[]> resolution = new CompletableFuture<>();
+        CompletableFuture<byte[]> outstanding = inFlight.putIfAbsent(key, resolution);
+        CacheEntry stale = recordCache.getStale(key);
+        if (stale == null) {
+            if (outstanding != null) {
+                return awaitCoalesced(key, outstanding, COALESCED_WAIT);
+            }
+            return resolveAndStore(key, dnsRequest, resolution);
+        }
+
+        // an expired answer is available: resolve in the background and serve the
+        // stale answer if the fresh one misses the client deadline or fails
+        if (outstanding == null) {
+            outstanding = resolution;
+            refreshInBackground(key, dnsRequest, resolution);
+        }
+        try {
+            return awaitCoalesced(key, outstanding, staleDeadline);
+        } catch (SocketTimeoutException | RuntimeException e) {
+            System.out.println("Answered stale from cache: " + key);
+            staleAnswers.increment();
+            byte[] responseBytes = stale.toStaleResponse(STALE_TTL);
+            return new DatagramPacket(responseBytes, responseBytes.length);
+        }
+    }
+
+    private void refreshInBackground(CacheKey key, DNSRequest dnsRequest, CompletableFuture<byte[]> resolution) {
+        try {
+            backgroundResolver.execute(() -> {
+                try {
+                    resolveAndStore(key, dnsRequest, resolution);
+                } catch (SocketTimeoutException | RuntimeException e) {
+                    System.out.println("Refresh failed for " + key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // no capacity for a refresh, the waiting client gets the stale answer
+            resolution.completeExceptionally(e);
+            inFlight.remove(key, resolution);
+        }
+    }
+
+    /**
+     * Resolves a request this thread has registered as the in-flight resolution for
+     * its key, caches the response and hands it to every query waiting on it.
+     */
+    private DatagramPacket resolveAndStore(CacheKey key, DNSRequest dnsRequest,
+            CompletableFuture<byte[]> resolution) throws SocketTimeoutException {
+        try {
+            DatagramPacket response = resolve(dnsRequest);
+            recordCache.store(key, response.getData(), response.getLength());
+            // waiting queries get their own copy, each one rewrites the ID for its client
+            resolution.complete(Arrays.copyOf(response.getData(), response.getLength()));
+            return response;
+        } catch (SocketTimeoutException | RuntimeException e) {
+            resolution.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, resolution);
+        }
+    }
+
+    /**
+     * Refreshes a popular cache entry in the background before it expires. Skipped
+     * when the prefetch limit is reached or the name is already being resolved.
+     */
+    private void prefetch(CacheKey key, DNSRequest dnsRequest) {
+        if (!prefetchPermits.tryAcquire()) {
+            recordCache.clearPrefetch(key);
+            return;
+        }
+        CompletableFuture<byte[]> resolution = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(key, resolution) != null) {
+            prefetchPermits.release();
+            return;
+        }
+        System.out.println("Prefetching " + key);
+        Runnable refresh = () -> {
+            try {
+                resolveAndStore(key, dnsRequest, resolution);
+            } catch (SocketTimeoutException | RuntimeException e) {
+                System.out.println("Prefetch failed for " + key);
+            } finally {
+                prefetchPermits.release();
+            }
+        };
+        try {
+            backgroundResolver.execute(refresh);
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, resolution);
+            prefetchPermits.release();
+            recordCache.clearPrefetch(key);
+        }
     }
 
-    private DatagramPacket resolve(DNSRequest clientDnsRequest) throws RuntimeException, SocketTimeoutException {
+    private DatagramPacket awaitCoalesced(CacheKey key, CompletableFuture<byte[]> outstanding, int waitMillis)
+            throws SocketTimeoutException {
+        System.out.println("Waiting on in-flight resolution: " + key);
+        try {
+            byte[] responseBytes = outstanding.get(waitMillis, TimeUnit.MILLISECONDS);
+            responseBytes = Arrays.copyOf(responseBytes, responseBytes.length);
+            return new DatagramPacket(responseBytes, responseBytes.length);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("In-flight resolution did not complete: " + key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SlistTimeOutException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SocketTimeoutException) {
+                throw new SocketTimeoutException(e.getCause().getMessage());
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new SlistTimeOutException("In-flight resolution failed: " + key);
+        }
+    }
+
+    /**
+     * Resolves the request and follows a CNAME answer to the canonical name,
+     * unless the CNAME itself was asked for. A CNAME link already cached for the
+     * name is followed without querying any server.
+     *
+     * @param request the request to resolve
+     * @return the response, with the CNAME chain flattened into its answer section
+     */
+    private DatagramPacket resolve(DNSRequest request) throws SocketTimeoutException {
+        if (request.getQueryType() == QueryType.CNAME) {
+            return resolveIterative(request).getPacket();
+        }
+        CacheEntry cachedLink = recordCache.get(new CacheKey(request.getName(), QueryType.CNAME, CLASS_IN));
+        if (cachedLink != null && !cachedLink.isNegative()) {
+            System.out.println("Following cached CNAME for " + request.getName());
+            return timedFollowCnameChain(request, viewOf(cachedLink.toResponse(System.currentTimeMillis())), null);
+        }
+        ZoneResponse response = resolveIterative(request);
+        DatagramPacket packet = response.getPacket();
+        DNSMessageView view = viewOf(packet.getData(), packet.getLength());
+        if (cnameRecord(view, request.getName()) < 0) {
+            return packet;
+        }
+        return timedFollowCnameChain(request, view, response.getZone());
+    }
+
+    private DatagramPacket timedFollowCnameChain(DNSRequest request, DNSMessageView first, DnsName firstZone)
+            throws SocketTimeoutException {
+        long start = System.nanoTime();
+        cnameChains.increment();
+        try {
+            return followCnameChain(request, first, firstZone);
+        } finally {
+            cnameFollowing.recordSince(start);
+        }
+    }
+
+    /**
+     * Resolves the request iteratively, from the closest cached zone cut or the
+     * root servers, and returns the first answer, referral end or error as is,
+     * with the zone of the server that sent it.
+     */
+    private ZoneResponse resolveIterative(DNSRequest clientDnsRequest) throws RuntimeException,
+            SocketTimeoutException {
         // given client DNS request, resolve the request and return final response as
         // DatagramPacket
-        byte[] clientRequestBytes = clientDnsRequest.getRequestBytes();
-        byte[] responseBytes = new byte[MAX_DNS_PACKET_SIZE];
-        DatagramPacket finalResponsePacket = new DatagramPacket(responseBytes, responseBytes.length);
+        DatagramPacket finalResponsePacket = null;
         boolean finalAnswerGet = false;
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(TIMEOUT);
-
-            DatagramPacket requestPacket = new DatagramPacket(clientRequestBytes, clientRequestBytes.length);
-
-            // query named.root servers for NS to iteratively send DNS query
-            DNSSlistSearch slistResult = queryServers(new DNSSlistSearch(rootList, requestPacket));
+        // the zone the servers being queried are authoritative for, referrals from them
+        // are only followed to zones below it
+        DnsName serverZone = DnsName.ROOT;
+        try {
+            // start from the deepest cached zone cut, or the named.root servers if none is known
+            Delegation closest = delegationCache.findClosest(clientDnsRequest.getName());
+            DNSSlistSearch slistResult = null;
+            if (closest != null) {
+                System.out.println("Starting from cached delegation for " + closest.getZone());
+                serverZone = closest.getZone();
+                slistResult = queryServers(closest.getServers(), clientDnsRequest);
+            }
+            if (slistResult == null || slistResult.getPacket() == null) {
+                // query named.root servers for NS to iteratively send DNS query
+                serverZone = DnsName.ROOT;
+                slistResult = queryServers(rootList, clientDnsRequest);
+            }
 
             if (slistResult.getPacket() == null) {
                 throw new SlistTimeOutException("All Root Servers timeout");
@@ -147,7 +689,7 @@ public class DNSResolver {
             while (!finalAnswerGet && slistResult.getPacket() != null) {
 
                 // parse the response from NS
-                DNSMessage msg = new DNSMessage(slistResult.getPacket().getData(), clientRequestBytes.length);
+                DNSMessage msg = new DNSMessage(slistResult.getPacket().getData());
 
                 try {
                     msg.checkRCodeForErrors();
@@ -155,23 +697,7 @@ public class DNSResolver {
                     // no RCode Exception in the reponse
                     // there is answer record in response
                     if (msg.getANCOUNT() > 0) {
-                        // if there is CNAME record included in Answer Section
-                        // if client query about CNAME, then return response
-                        // if client didn't query CNAME, reconstruct the dns query for CNAME and start
-                        // query again
-                        for (DNSRecord ansRecord : msg.getAnswerRecords()) {
-                            if (clientDnsRequest.getQueryType() == QueryType.CNAME) {
-                                finalAnswerGet = true;
-                                finalResponsePacket = slistResult.getPacket();
-                                return finalResponsePacket;
-                            }
-                            if (ansRecord.getQueryType() == QueryType.CNAME) {
-                                String cName = ansRecord.getDomainIP();
-                                return resolveWithCNAME(cName, clientDnsRequest);
-                            }
-                        }
-
-                        // there is no CNAME record, meaning final answer get!
+                        // final answer get! a CNAME answer is followed by resolve()
                         // return to client
                         finalAnswerGet = true;
                         finalResponsePacket = slistResult.getPacket();
@@ -183,7 +709,7 @@ public class DNSResolver {
                         // clientDnsRequest.getQueryType());
                         // finalmsg.outputResponse();
 
-                        return finalResponsePacket;
+                        return new ZoneResponse(finalResponsePacket, serverZone);
                     }
 
                     // check if response nominates antoher server to query iteratively
@@ -192,16 +718,28 @@ public class DNSResolver {
                         // if SOA record present in Auth NS section, return response to client
                         DNSRecord[] authRecords = msg.getAuthorityRecords();
                         for (DNSRecord r : authRecords) {
-                            if (r.getQueryType() == QueryType.OTHER) {
+                            if (r.getQueryType() == QueryType.SOA) {
                                 finalAnswerGet = true;
                                 finalResponsePacket = slistResult.getPacket();
-                                return finalResponsePacket;
+                                return new ZoneResponse(finalResponsePacket, serverZone);
                             }
                         }
+                        DnsName zone = referralZone(msg, serverZone, clientDnsRequest.getName());
+                        if (zone == null) {
+                            // a referral upwards, sideways or away from the name is lame or forged,
+                            // ask the servers of this zone not queried yet
+                            System.out.println("Ignoring out of bailiwick referral from zone " + serverZone);
+                            slistResult = queryServers(slistResult.getSlist(), clientDnsRequest);
+                            continue;
+                        }
                         // get the list of NS type A record
-                        List<DNSRecord> slist = handleNSNominatedResponse(msg);
+                        long referralStart = System.nanoTime();
+                        List<DNSRecord> slist = handleNSNominatedResponse(msg, zone);
+                        referralHandling.recordSince(referralStart);
+                        referrals.increment();
+                        serverZone = zone;
                         // query slist using client request
-                        slistResult = queryServers(new DNSSlistSearch(slist, requestPacket));
+                        slistResult = queryServers(slist, clientDnsRequest);
                         continue;
                     }
 
@@ -212,17 +750,17 @@ public class DNSResolver {
                         // list exhausted, return response to client
                         finalResponsePacket = slistResult.getPacket();
                         finalAnswerGet = true;
-                        return finalResponsePacket;
+                        return new ZoneResponse(finalResponsePacket, serverZone);
                     } else {
-                        // exhaust search slist
-                        slistResult = queryServers(slistResult);
+                        // exhaust search slist, getSlist() holds the servers not yet queried
+                        slistResult = queryServers(slistResult.getSlist(), clientDnsRequest);
                     }
                 } catch (
                         NotImplementedException | NameErrorException | FormatErrorException | RefusedException e) {
                     // return it back to client
                     finalResponsePacket = slistResult.getPacket();
                     finalAnswerGet = true;
-                    return finalResponsePacket;
+                    return new ZoneResponse(finalResponsePacket, serverZone);
                 }
             }
 
@@ -233,12 +771,13 @@ public class DNSResolver {
             // e.printStackTrace();
             System.out.println("null pointer");
             System.out.println(e.getMessage());
-        } catch (SocketException e) {
-            // e.printStackTrace();
-            System.out.println("ERROR from Socket during resolving: " + e.getMessage());
         }
 
         // iterative query complete, return the Response Packet to client
+        if (finalResponsePacket == null) {
+            // gave up on an unexpected error, answer with an empty message as before
+            finalResponsePacket = new DatagramPacket(new byte[MAX_DNS_PACKET_SIZE], MAX_DNS_PACKET_SIZE);
+        }
 
         // System.out.println();
         // System.out.println("checkpoint: before returning from resolve()" +
@@ -247,236 +786,553 @@ public class DNSResolver {
         //         clientDnsRequest.getQueryType());
         // finalmsg.outputResponse();
 
-        return (finalResponsePacket);
+        return new ZoneResponse(finalResponsePacket, serverZone);
 
     }
 
-    private DatagramPacket resolveWithCNAME(String cName, DNSRequest clientDnsRequest) throws SocketTimeoutException {
-
-        byte[] cnameRequestResponseBytes = new byte[MAX_DNS_PACKET_SIZE];
-        DatagramPacket cnameResponse = new DatagramPacket(cnameRequestResponseBytes, cnameRequestResponseBytes.length);
+    /**
+     * Follows a CNAME chain from a response holding the first link, one link at a
+     * time. A response may carry several links and even the final answer, but a
+     * server is only trusted for names in its own zone: the chain is followed
+     * through a response only while its names stay inside the zone of the server
+     * that sent it, and the first name outside is resolved on its own. For every
+     * name it does not cover, the answer is taken from the cache, then a cached
+     * CNAME link, and only if neither is cached is the name resolved, from its
+     * closest cached zone cut. Links learnt from servers are cached on their own,
+     * so later chains through them need no queries.
+     *
+     * @param request   the client's request
+     * @param first     a response whose answer holds a CNAME for the request's name
+     * @param firstZone the zone of the server that sent first, null if it came from
+     *                  the cache
+     * @return the flattened response, SERVFAIL with the chain so far if the chain
+     *         is longer than MAX_CNAME_CHAIN
+     */
+    private DatagramPacket followCnameChain(DNSRequest request, DNSMessageView first, DnsName firstZone)
+            throws SocketTimeoutException {
+        // the CNAME records of the chain, in order, as the response and index of each
+        List<DNSMessageView> chainViews = new ArrayList<>();
+        List<Integer> chainRecords = new ArrayList<>();
+        DNSMessageView link = first;
+        DnsName zone = firstZone;
+        DnsName name = request.getName();
+        while (true) {
+            int record;
+            while (inZone(name, zone) && (record = cnameRecord(link, name)) >= 0) {
+                if (zone != null) {
+                    cacheCnameRecord(link, record);
+                }
+                chainViews.add(link);
+                chainRecords.add(record);
+                name = link.getDnsName(link.getRdataOffset(record));
+                if (chainRecords.size() > MAX_CNAME_CHAIN) {
+                    // too long or a loop
+                    System.out.println("CNAME chain too long for " + request.getName());
+                    return buildCnameResponse(request, chainViews, chainRecords, null, name);
+                }
+            }
+            if (inZone(name, zone) && hasAnswer(link, name, request.getWireType())) {
+                return buildCnameResponse(request, chainViews, chainRecords, link, name);
+            }
 
-        DNSRequest cNameRequest = new DNSRequest(cName, clientDnsRequest.getQueryType(), false);
-        cnameResponse = resolve(cNameRequest);
+            CacheEntry cached = recordCache.get(new CacheKey(name, request.getQueryType(), CLASS_IN));
+            if (cached != null) {
+                return buildCnameResponse(request, chainViews, chainRecords,
+                        viewOf(cached.toResponse(System.currentTimeMillis())), name);
+            }
+            cached = recordCache.get(new CacheKey(name, QueryType.CNAME, CLASS_IN));
+            if (cached != null && !cached.isNegative()) {
+                System.out.println("Following cached CNAME for " + name);
+                link = viewOf(cached.toResponse(System.currentTimeMillis()));
+                zone = null;
+                continue;
+            }
 
-        return contacteResponseAndRequest(cnameResponse, clientDnsRequest);
+            DNSRequest next = new DNSRequest(name, request.getQueryType(), false);
+            ZoneResponse response = resolveIterative(next);
+            DatagramPacket packet = response.getPacket();
+            DNSMessageView view = viewOf(packet.getData(), packet.getLength());
+            if (cnameRecord(view, name) < 0) {
+                recordCache.store(new CacheKey(name, request.getQueryType(), CLASS_IN), packet.getData(),
+                        packet.getLength());
+                return buildCnameResponse(request, chainViews, chainRecords, view, name);
+            }
+            // the server for name's zone, so the chain goes on at least one link
+            link = view;
+            zone = response.getZone();
+        }
+    }
 
+    // true if a server for zone may answer for name, a null zone stands for the cache
+    private static boolean inZone(DnsName name, DnsName zone) {
+        return zone == null || name.isSubdomainOf(zone);
     }
 
     /**
-     * Contact the response and request by concatenating the client request bytes
-     * with
-     * the answer bytes from the cname message. Return a DatagramPacket to be sent
-     * to client.
+     * Builds the answer to the client's question from the pieces of a CNAME chain.
+     * The answer section holds the chain's CNAME records in order followed by the
+     * final response's answers for the last name; the header, authority and
+     * additional sections come from the final response. Names are compressed
+     * against the new message, so no pointer refers to any source message.
      *
-     * @param cnameResponse    the DatagramPacket containing the response from the
-     *                         Type A request with canonical name
-     * @param clientDnsRequest the original DNSRequest from the client
-     * @return a response DatagramPacket to be sent to client with client's question
-     *         section and cnameResponse's answer section
+     * @param request      the client's request
+     * @param chainViews   the response holding each CNAME record of the chain
+     * @param chainRecords the index of each CNAME record in its response
+     * @param last         the response for the last name of the chain, or null to
+     *                     answer SERVFAIL with the chain alone
+     * @param lastName     the last name of the chain
+     * @return a response DatagramPacket answering the client's question
      */
-    private DatagramPacket contacteResponseAndRequest(DatagramPacket cnameResponse, DNSRequest clientDnsRequest) {
-        // extract original client request bytes
-        byte[] clientRequestBytes = clientDnsRequest.getRequestBytes();
-
-        // extract cnameResponse bytes
-        byte[] cnameResponseBytes = cnameResponse.getData();
+    private DatagramPacket buildCnameResponse(DNSRequest request, List<DNSMessageView> chainViews,
+            List<Integer> chainRecords, DNSMessageView last, DnsName lastName) {
+        DNSMessageView header = last != null ? last : chainViews.get(chainViews.size() - 1);
+        int flags = last != null ? header.getFlags() : (header.getFlags() & ~RCODE_MASK) | RCODE_SERVER_FAILURE;
+        DNSMessageBuilder builder = new DNSMessageBuilder(DNSMessageBuilder.MAX_MESSAGE_SIZE);
+        builder.header(header.getID(), flags).question(request.getName(), request.getWireType(), CLASS_IN);
+        Set<DnsName> owners = new HashSet<>();
+        for (int i = 0; i < chainViews.size(); i++) {
+            DNSMessageView link = chainViews.get(i);
+            int record = chainRecords.get(i);
+            // a loop repeats its links, each is listed once
+            if (owners.add(link.getDnsName(link.getRecordOffset(record)))) {
+                builder.copyRecord(DNSMessageBuilder.ANSWER, link, record);
+            }
+        }
+        if (last != null) {
+            int answerEnd = last.getANCount();
+            int authorityEnd = answerEnd + last.getNSCount();
+            for (int i = 0; i < last.getRecordCount(); i++) {
+                int type = last.getRecordType(i);
+                if (type == DNSMessageView.TYPE_OPT) {
+                    continue;
+                }
+                // only the answers for the last name, the chain's CNAME records are already in
+                if (i < answerEnd
+                        && (type == TYPE_CNAME || !last.getDnsName(last.getRecordOffset(i)).equals(lastName))) {
+                    continue;
+                }
+                int section = i < answerEnd ? DNSMessageBuilder.ANSWER
+                        : i < authorityEnd ? DNSMessageBuilder.AUTHORITY : DNSMessageBuilder.ADDITIONAL;
+                if (!builder.copyRecord(section, last, i)) {
+                    break;
+                }
+            }
+        }
+        return toResponsePacket(builder.toBytes());
+    }
 
-        // modify header section to match cnameResponse header section
-        byte[] headerNquestionSection = modifyHeader(clientRequestBytes, cnameResponseBytes);
+    /**
+     * Caches one CNAME record of a response as a message of its own, answering the
+     * question (owner, CNAME).
+     */
+    private void cacheCnameRecord(DNSMessageView response, int record) {
+        DnsName owner = response.getDnsName(response.getRecordOffset(record));
+        DNSMessageBuilder builder = new DNSMessageBuilder(DNSMessageBuilder.MAX_MESSAGE_SIZE);
+        builder.header(response.getID(), response.getFlags() & ~(RCODE_MASK | TC_FLAG))
+                .question(owner, QueryType.CNAME.getCode(), CLASS_IN);
+        builder.copyRecord(DNSMessageBuilder.ANSWER, response, record);
+        byte[] message = builder.toBytes();
+        recordCache.store(new CacheKey(owner, QueryType.CNAME, CLASS_IN), message, message.length);
+    }
 
-        DNSMessage cnameMessage = new DNSMessage(cnameResponseBytes);
-        // get the answer section from cname reponse
-        byte[] answerSectionBytes = cnameMessage.getAnswerSectionBytes();
+    // index of the CNAME record owned by name in the answer section, -1 if none
+    private static int cnameRecord(DNSMessageView response, DnsName name) {
+        for (int i = 0; i < response.getANCount() && i < response.getRecordCount(); i++) {
+            if (response.getRecordType(i) == TYPE_CNAME
+                    && response.getDnsName(response.getRecordOffset(i)).equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-        // concat modified question + header section, with canme answer section
-        byte[] concatedByte = new byte[MAX_DNS_PACKET_SIZE];
-        // int answerSectionStartIndexInCnameResponse = getAnswerIndex(answerBytes);
-        
-        if (answerSectionBytes.length + headerNquestionSection.length > MAX_DNS_PACKET_SIZE) {
-            
-            System.arraycopy(answerSectionBytes, 0, concatedByte, headerNquestionSection.length,
-            MAX_DNS_PACKET_SIZE - headerNquestionSection.length);
-            // set header TC to 1
-            byte b = headerNquestionSection[2];
-            b = (byte) ((b & 0xff) | (1 << 1));
-            headerNquestionSection[2] = b;
-        } else {
-            System.arraycopy(answerSectionBytes, 0, concatedByte, headerNquestionSection.length,
-            answerSectionBytes.length);
+    private static boolean hasAnswer(DNSMessageView response, DnsName name, int type) {
+        for (int i = 0; i < response.getANCount() && i < response.getRecordCount(); i++) {
+            if (response.getRecordType(i) == type
+                    && response.getDnsName(response.getRecordOffset(i)).equals(name)) {
+                return true;
+            }
         }
-        
-        System.arraycopy(headerNquestionSection, 0, concatedByte, 0, headerNquestionSection.length);
-        return new DatagramPacket(concatedByte, concatedByte.length);
+        return false;
     }
 
+    private static DNSMessageView viewOf(byte[] message) {
+        return viewOf(message, message.length);
+    }
 
+    private static DNSMessageView viewOf(byte[] message, int length) {
+        return new DNSMessageView(ByteBuffer.wrap(message, 0, length));
+    }
 
     /**
-     * Modifies the header of the client DNS request bytes, to match cname
-     * answerBytes.
+     * Returns the zone a referral delegates to, or null if the referral must not be
+     * followed. Its NS records must share one owner, strictly below the zone of the
+     * server that sent it and enclosing the name being resolved; anything else would
+     * let a server for one zone take over lookups in another.
      *
-     * @param clientRequestBytes the byte array representing the client request
-     * @param responseBytes      the byte array containing the answer
-     * @return the modified byte array containing header and question ready to be
-     *         sent to client
+     * @param msg         the referral response
+     * @param serverZone  the zone the answering server is authoritative for
+     * @param queryDomain the name being resolved
      */
-    private byte[] modifyHeader(byte[] clientRequestBytes, byte[] responseBytes) {
-        byte[] resultingBytes = new byte[clientRequestBytes.length];
-        int offset = 0;
-        // client ID stays the same
-        System.arraycopy(clientRequestBytes, offset, resultingBytes, offset, 2);
+    private static DnsName referralZone(DNSMessage msg, DnsName serverZone, DnsName queryDomain) {
+        DnsName zone = null;
+        for (DNSRecord r : msg.getAuthorityRecords()) {
+            if (r.getQueryType() != QueryType.NS) {
+                continue;
+            }
+            DnsName owner = msg.getView().getDnsName(r.getOffset());
+            if (zone == null) {
+                zone = owner;
+            } else if (!zone.equals(owner)) {
+                return null;
+            }
+        }
+        if (zone == null || zone.getLabelCount() <= serverZone.getLabelCount() || !zone.isSubdomainOf(serverZone)
+                || !queryDomain.isSubdomainOf(zone)) {
+            return null;
+        }
+        return zone;
+    }
 
-        offset += 2;
-        // second row of header
-        // QR, Opcode, AA, TC, RD, RA, Z, RCode = answer
-        System.arraycopy(responseBytes, offset, resultingBytes, offset, 2);
+    private List<DNSRecord> handleNSNominatedResponse(DNSMessage msg, DnsName zone) {
+        List<DNSRecord> slist = buildSlist(msg, zone);
+        cacheDelegation(msg, zone, slist);
+        return slist;
+    }
 
-        offset += 2;
-        // QDCOUNT = client;
-        System.arraycopy(clientRequestBytes, offset, resultingBytes, offset, 2);
+    private List<DNSRecord> buildSlist(DNSMessage msg, DnsName zone) {
+        // glue is only taken for the referral's own NS names inside the delegated zone,
+        // the one place those addresses can come from; other A records in the
+        // additional section are ignored
+        Set<DnsName> glueNames = new HashSet<>();
+        // NS names outside the zone, their addresses are looked up like any other name
+        List<String> nsNames = new ArrayList<>();
+        for (DNSRecord authNSRecord : msg.getAuthorityRecords()) {
+            if (authNSRecord.getQueryType() != QueryType.NS) {
+                continue;
+            }
+            DnsName nsName = DnsName.of(authNSRecord.getDomainIP());
+            if (nsName.isSubdomainOf(zone)) {
+                glueNames.add(nsName);
+            } else {
+                nsNames.add(authNSRecord.getDomainIP());
+            }
+        }
+        List<DNSRecord> slist = new ArrayList<>();
+        for (DNSRecord r : msg.getAdditionalRecords()) {
+            if (r.getQueryType() == QueryType.A && hasAddress(r)
+                    && glueNames.contains(msg.getView().getDnsName(r.getOffset()))) {
+                slist.add(r);
+            }
+        }
+        if (!slist.isEmpty()) {
+            return slist;
+        }
 
-        offset += 2;
-        // ANCOUNT = answer
-        System.arraycopy(responseBytes, offset, resultingBytes, offset, 2);
+        System.out.println("no glue for NS, querying for type A RR for NS...");
+        // look up every NS name at once and continue with the first address found,
+        // names inside the zone cannot be looked up without glue
+        DNSRecord nsAddress = lookupFirstAddress(nsNames);
+        if (nsAddress != null) {
+            slist.add(nsAddress);
+        }
+        return slist;
+    }
 
-        offset += 2;
-        // NSCOUNT = answer
-        System.arraycopy(responseBytes, offset, resultingBytes, offset, 2);
+    /**
+     * Resolves the addresses of the given name servers concurrently and returns the
+     * first one found. Lookups still running afterwards are left to finish, their
+     * answers end up in the cache.
+     *
+     * @return an A record for one of the names, or null if none resolved in time
+     */
+    private DNSRecord lookupFirstAddress(List<String> nsNames) {
+        CompletableFuture<DNSRecord> first = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(nsNames.size());
+        for (String nsName : nsNames) {
+            if (first.isDone()) {
+                // a lookup run on this thread already found an address
+                break;
+            }
+            nsLookups.execute(() -> {
+                try {
+                    DNSRecord address = getDNSRecordForNS(nsName);
+                    if (address != null) {
+                        first.complete(address);
+                    }
+                } catch (SocketTimeoutException | RuntimeException e) {
+                    System.out.println("Address lookup failed for name server " + nsName);
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        first.complete(null);
+                    }
+                }
+            });
+        }
+        if (nsNames.isEmpty()) {
+            return null;
+        }
+        try {
+            return first.get(NS_LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
 
-        offset += 2;
-        // ARCOUNT = answer
-        System.arraycopy(responseBytes, offset, resultingBytes, offset, 2);
+    /**
+     * Remembers the name servers of the zone cut in a referral, so later queries
+     * below that zone can skip the servers above it.
+     *
+     * @param msg   the referral response
+     * @param zone  the delegated zone, checked by referralZone()
+     * @param slist the resolved addresses of the zone's name servers
+     */
+    private void cacheDelegation(DNSMessage msg, DnsName zone, List<DNSRecord> slist) {
+        int ttl = Integer.MAX_VALUE;
+        for (DNSRecord r : msg.getAuthorityRecords()) {
+            if (r.getQueryType() == QueryType.NS) {
+                ttl = Math.min(ttl, r.getTimeToLive());
+            }
+        }
+        for (DNSRecord r : slist) {
+            // glue records carry their own TTL, looked up addresses do not
+            if (r.getTimeToLive() > 0) {
+                ttl = Math.min(ttl, r.getTimeToLive());
+            }
+        }
+        delegationCache.store(zone, slist, ttl);
+    }
 
-        offset += 2;
+    /**
+     * Resolves the address of a name server through this resolver, never the
+     * system resolver.
+     *
+     * @return an A record for the name, or null if it has no address
+     */
+    private DNSRecord getDNSRecordForNS(String nsName) throws SocketTimeoutException {
+        // construct the DNS request to ask for type A RR of NS
+        DNSRequest nsRequest = new DNSRequest(nsName, QueryType.A, false);
+
+        // send the request for nsName
+        DatagramPacket nsResponse = resolveCached(nsRequest);
 
-        // Header section modified finished
-        // question section = client
-        System.arraycopy(clientRequestBytes, offset, resultingBytes, offset, clientRequestBytes.length - 12);
+        // parse the response packet into DNSMessage
+        DNSMessage nsAResponseMsg = new DNSMessage(nsResponse.getData());
 
-        return resultingBytes;
+        // the answer may start with the CNAME chain leading to the address
+        for (DNSRecord answer : nsAResponseMsg.getAnswerRecords()) {
+            if (answer.getQueryType() == QueryType.A && hasAddress(answer)) {
+                return new DNSRecord(nsName, answer.getDomainIP(), QueryType.A);
+            }
+        }
+        return null;
     }
 
-    private List<DNSRecord> handleNSNominatedResponse(DNSMessage msg) {
-        // if msg Additional Records section containes type A record
-        // construct new slist and return the list
-        List<DNSRecord> slist = new ArrayList<>();
-        if (msg.getARCount() > 0) {
-            DNSRecord[] aRecords = msg.getAdditionalRecords();
-            for (DNSRecord r : aRecords) {
-                if (r.getQueryType() == QueryType.A) {
-                    slist.add(r);
+    /**
+     * Asks the servers the request until a response is received. Servers are
+     * queried in slist order; when a server has not answered within the hedge
+     * delay the next one is queried as well, the first usable response wins and
+     * the other outstanding queries are cancelled.
+     *
+     * @param servers the servers to query
+     * @param request the question to ask them
+     * @return the DNSSlistSearch object with the servers not yet queried and the
+     *         response packet, which is null if no server answered
+     */
+    private DNSSlistSearch queryServers(List<DNSRecord> servers, DNSRequest request) {
+        // fastest known servers first
+        List<DNSRecord> slist = serverStats.order(servers);
+        if (slist.isEmpty()) {
+            // no server left to query, all server timeout, return null response
+            return new DNSSlistSearch(slist, null);
+        }
+
+        long start = System.nanoTime();
+        HedgedQuery hedgedQuery = new HedgedQuery();
+        long lastDeadline = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < slist.size(); i++) {
+                DNSRecord nameServer = slist.get(i);
+                if (nameServer.getQueryType() == QueryType.NS) {
+                    continue;
+                }
+                int rto = serverStats.getRto(nameServer.getDomainIP());
+                lastDeadline = Math.max(lastDeadline, System.currentTimeMillis() + rto);
+                hedgedQuery.launch(sendQuery(nameServer.getDomainIP(), request, rto));
+                // with hedging disabled the next server is only tried once this one timed out
+                int staggerDelay = hedgeDelay > 0 ? Math.min(hedgeDelay, rto) : rto;
+                byte[] response = hedgedQuery.await(staggerDelay);
+                if (response != null) {
+                    return new DNSSlistSearch(slist.subList(i + 1, slist.size()), toResponsePacket(response));
                 }
             }
-            if (!slist.isEmpty()) {
-                return slist;
-            }
+            hedgedQuery.finishLaunching();
+            // the race ends by itself once the last attempt reaches its RTO, or its TCP
+            // retry gives up
+            byte[] response = hedgedQuery.await(Math.max(0, lastDeadline - System.currentTimeMillis())
+                    + tcpTransport.getTimeout());
+            return new DNSSlistSearch(new ArrayList<>(), response == null ? null : toResponsePacket(response));
+        } finally {
+            hedgedQuery.cancelStragglers();
+            upstreamHop.recordSince(start);
         }
+    }
 
-        System.out.println("no additional record for NS, querying for type A RR for NS...");
-        // if msg has no type A DNS record
-        // query this server for type A record and return this DNSRecord
-        for (DNSRecord authNSRecord : msg.getAuthorityRecords()) {
-            String nsName = authNSRecord.getDomainIP();
+    private CompletableFuture<byte[]> sendQuery(String nsDomainIpString, DNSRequest request, int timeout) {
+        InetSocketAddress server;
+        try {
+            server = new InetSocketAddress(parseIPv4(nsDomainIpString), DNS_PORT);
+        } catch (UnknownHostException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // upstream queries advertise our EDNS0 payload size so large answers fit in one datagram,
+        // responses echo the question so they are still parsed at the plain request length
+        int payloadSize = serverStats.supportsEdns(nsDomainIpString) ? udpPayloadSize : 0;
+        // the UDP query or TCP retry currently outstanding, cancelled when the hedged race is lost
+        AtomicReference<CompletableFuture<byte[]>> outstanding = new AtomicReference<>(
+                sendUdpQuery(server, nsDomainIpString, request, payloadSize, timeout));
+        CompletableFuture<byte[]> udpResponse = outstanding.get();
+        if (payloadSize > 0) {
+            // RFC 6891 section 7: a server that rejects the OPT record is asked once more without it,
+            // servers that drop such queries instead are found by ServerStats after repeated timeouts
+            udpResponse = udpResponse.thenCompose(r -> {
+                if (!rejectsEdns(r)) {
+                    return CompletableFuture.completedFuture(r);
+                }
+                ednsFallbacks.increment();
+                serverStats.recordNoEdns(nsDomainIpString);
+                return handOver(outstanding, sendUdpQuery(server, nsDomainIpString, request, 0, timeout));
+            });
+        }
 
-            try {
-                slist.add(getDNSRecordForNS(nsName));
-                return slist;
-            } catch (SocketTimeoutException|NullPointerException|UnknownHostException e) {
-                continue;
+        // a truncated answer is re-issued over TCP to get the complete response
+        CompletableFuture<byte[]> response = udpResponse.thenCompose(r -> {
+            if (!isTruncated(r)) {
+                return CompletableFuture.completedFuture(r);
+            }
+            tcpRetries.increment();
+            // only this rare retry encodes the query on the heap, TCP writes it from another thread
+            byte[] tcpQuery = request.getRequestBytes(serverStats.supportsEdns(nsDomainIpString) ? udpPayloadSize : 0);
+            return handOver(outstanding, tcpTransport.query(server, tcpQuery, tcpQuery.length));
+        });
+        // losing a hedged race cancels the query in flight too, so a UDP query is not counted as
+        // a timeout and a TCP retry frees its place on the pipelined connection
+        response.whenComplete((r, e) -> {
+            if (response.isCancelled()) {
+                outstanding.getAndSet(null).cancel(false);
             }
+        });
+        return response;
+    }
+
+    // makes next the query in flight, or cancels it right away if the race was lost meanwhile
+    private static CompletableFuture<byte[]> handOver(AtomicReference<CompletableFuture<byte[]>> outstanding,
+            CompletableFuture<byte[]> next) {
+        CompletableFuture<byte[]> previous = outstanding.get();
+        if (previous == null || !outstanding.compareAndSet(previous, next)) {
+            next.cancel(false);
         }
-        return slist;
+        return next;
     }
-    
-    private DNSRecord getDNSRecordForNS(String nsName) throws SocketTimeoutException,NullPointerException, UnknownHostException {
-        // construct the DNS request to ask for type A RR of NS
-        DNSRequest nsRequest = new DNSRequest(nsName, QueryType.A, false);
-        
-        byte[] nsResponseBytes = new byte[MAX_DNS_PACKET_SIZE];
-        DatagramPacket nsResponse = new DatagramPacket(nsResponseBytes, nsResponseBytes.length);
-        // send the request for nsName
-        nsResponse = resolve(nsRequest);
-        
-        // parse the response packet into DNSMessage
-        DNSMessage nsAResponseMsg = new DNSMessage(nsResponse.getData(), nsRequest.getRequestBytes().length);
 
-        // get the answer section
-        DNSRecord[] nsARR = nsAResponseMsg.getAnswerRecords();
+    // one UDP query with its outcome recorded in the server's statistics
+    private CompletableFuture<byte[]> sendUdpQuery(InetSocketAddress server, String nsDomainIpString,
+            DNSRequest request, int payloadSize, int timeout) {
+        upstreamQueries.increment();
+        long start = System.nanoTime();
+        CompletableFuture<byte[]> udpResponse = transport.query(server, request, payloadSize)
+                .orTimeout(timeout, TimeUnit.MILLISECONDS);
+        udpResponse.whenComplete((r, e) -> {
+            double elapsedMillis = (System.nanoTime() - start) / 1_000_000.0;
+            if (r != null) {
+                serverStats.recordRtt(nsDomainIpString, elapsedMillis);
+                serverStats.recordEdnsResult(nsDomainIpString, payloadSize > 0, true);
+            } else if (e instanceof TimeoutException) {
+                serverStats.recordTimeout(nsDomainIpString);
+                serverStats.recordEdnsResult(nsDomainIpString, payloadSize > 0, false);
+                upstreamTimeouts.increment();
+            } else if (e instanceof CancellationException) {
+                serverStats.recordCancelled(nsDomainIpString, elapsedMillis);
+            }
+        });
+        return udpResponse;
+    }
 
-        if (nsARR.length == 0) {
-            // System.out.println("USE Name");
-            InetAddress ipAddr = InetAddress.getByName(nsName);
-            return new DNSRecord(nsName, ipAddr.getHostAddress(), QueryType.A);
+    // FORMERR or NOTIMP without an OPT record is how a server predating EDNS0 answers one
+    private static boolean rejectsEdns(byte[] response) {
+        if (response.length < 4) {
+            return false;
         }
+        int rcode = response[3] & RCODE_MASK;
+        if (rcode != RCODE_FORMAT_ERROR && rcode != RCODE_NOT_IMPLEMENTED) {
+            return false;
+        }
+        try {
+            return new DNSMessageView(response).getEdnsPayloadSize() == 0;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
 
-        String nsDomainIpString = nsARR[0].getDomainIP();
-        return new DNSRecord(nsName, nsDomainIpString, QueryType.A);
+    private boolean isTruncated(byte[] response) {
+        return response.length > 2 && (response[2] & (1 << 1)) != 0;
+    }
 
-        
+    // server addresses come from A records and named.root as dotted quads, parsed here
+    // so that the JVM's own resolver is never asked
+    private static InetAddress parseIPv4(String address) throws UnknownHostException {
+        String[] parts = address.split("\\.");
+        if (parts.length != 4) {
+            throw new UnknownHostException("Not an IPv4 address: " + address);
+        }
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            int value = parseOctet(parts[i]);
+            if (value < 0) {
+                throw new UnknownHostException("Not an IPv4 address: " + address);
+            }
+            bytes[i] = (byte) value;
+        }
+        return InetAddress.getByAddress(bytes);
     }
-    /**
-     * Queries the servers in the provided DNSSlistSearch object until a response is
-     * received.
-     *
-     * @param slistEntry the DNSSlistSearch object containing the list of servers
-     *                   and the query packet
-     * @return the DNSSlistSearch object with the updated server list and the
-     *         response packet
-     */
-    private DNSSlistSearch queryServers(DNSSlistSearch slistEntry) throws SocketTimeoutException {
-        // query the server in slist until a response is received
-        // if
-        List<DNSRecord> slist = slistEntry.getSlist();
-        DatagramPacket queryPacket = slistEntry.getPacket();
-        boolean responseFound = false;
-        byte[] responseBytes = new byte[MAX_DNS_PACKET_SIZE];
-        DatagramPacket response = new DatagramPacket(responseBytes, responseBytes.length);
-        if (slist.isEmpty()) {
-            // no server left to query, all server timeout, return null
-            return null;
+
+    // true if the record holds a dotted quad address sendQuery can parse, any other
+    // record is never queried or cached as a name server
+    private static boolean hasAddress(DNSRecord record) {
+        if (record.getDomainIP() == null) {
+            return false;
+        }
+        try {
+            parseIPv4(record.getDomainIP());
+            return true;
+        } catch (UnknownHostException e) {
+            return false;
         }
+    }
 
-        for (int i = 0; i < slist.size(); i++) {
-            DNSRecord nameServer = slist.get(i);
-            if (nameServer.getQueryType() == QueryType.NS) {
-                continue;
+    // the value of a decimal octet, -1 if the string is not one
+    private static int parseOctet(String part) {
+        if (part.isEmpty() || part.length() > 3) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < part.length(); i++) {
+            char c = part.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
             }
-            String nsDomainIpString = nameServer.getDomainIP();
-            try {
-                response = queryServer(nsDomainIpString, queryPacket);
-                responseFound = true;
-                return new DNSSlistSearch(slist, response);
-            } catch (SocketException e) {
-                // socket timeout, continue to query next server in the list
-            } catch (SocketTimeoutException e) {
-                // e.printStackTrace();
-                throw e;
-            } catch (Exception e) {
-                System.out.println("Other exception of socket in queryNsListserver ");
-                // e.printStackTrace();
-            }
-        }
-
-        // if response found from list, return response
-        // otherwise return null response
-        return (responseFound) ? new DNSSlistSearch(slist, response) : new DNSSlistSearch(slist, null);
-    }
-
-    private DatagramPacket queryServer(String nsDomainIpString, DatagramPacket clientQueryPacket) throws IOException {
-        System.out.println("Querying server " + nsDomainIpString + " ...");
-        byte[] responseBytes = new byte[MAX_DNS_PACKET_SIZE];
-        DatagramPacket responsePacket = new DatagramPacket(responseBytes, responseBytes.length);
-
-        DatagramSocket socket = new DatagramSocket();
-        socket.setSoTimeout(TIMEOUT);
-
-        clientQueryPacket.setAddress(InetAddress.getByName(nsDomainIpString));
-        clientQueryPacket.setPort(53);
-        socket.send(clientQueryPacket);
-        socket.receive(responsePacket);
-        socket.close();
-        return responsePacket;
+            value = value * 10 + (c - '0');
+        }
+        return value <= 255 ? value : -1;
+    }
+
+    private DatagramPacket toResponsePacket(byte[] response) {
+        // keep at least a full packet sized buffer, the parsers index up to MAX_DNS_PACKET_SIZE
+        byte[] responseBytes = Arrays.copyOf(response, Math.max(response.length, MAX_DNS_PACKET_SIZE));
+        return new DatagramPacket(responseBytes, response.length);
     }
 
     private byte[] getIpBytesFromIpString(String ipString) {
@@ -0,0 +1,32 @@
+import java.util.List;
+
+/**
+ * A cached zone cut: the zone name and the addresses of its name servers.
+ */
+public class Delegation {
+    private final DnsName zone;
+    private final List<DNSRecord> servers;
+    private final long expiresAt;
+
+    public Delegation(DnsName zone, List<DNSRecord> servers, long expiresAt) {
+        this.zone = zone;
+        this.servers = servers;
+        this.expiresAt = expiresAt;
+    }
+
+    public DnsName getZone() {
+        return this.zone;
+    }
+
+    public List<DNSRecord> getServers() {
+        return this.servers;
+    }
+
+    public long getExpiresAt() {
+        return this.expiresAt;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+}
@@ -0,0 +1,214 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Infrastructure cache of name server addresses per zone cut. Zones are stored in
+ * a trie keyed by name suffixes from the right (com, example.com, www.example.com)
+ * so the deepest known delegation for a name is found in one walk down the trie.
+ * Readers never lock:
+ * children live in ConcurrentHashMaps and the delegation of a node is a volatile
+ * reference replaced as a whole.
+ *
+ * At most MAX_DELEGATIONS zones are kept. Expired delegations are dropped when a
+ * lookup comes across them, and a sweep every SWEEP_INTERVAL stores removes the
+ * rest along with the trie nodes left empty. While the cache is full, new zones
+ * are not cached until a sweep makes room.
+ */
+public class DelegationCache {
+    private static final int MAX_TTL = 86400;
+    private static final int MAX_DELEGATIONS = 100000;
+    private static final int SWEEP_INTERVAL = 4096;
+    private final Node root = new Node();
+    private final AtomicInteger delegationCount = new AtomicInteger();
+    private final AtomicInteger storesSinceSweep = new AtomicInteger();
+    // stores add nodes under the read lock, a sweep removes them under the write lock,
+    // so a delegation is never stored into a node being unlinked
+    private final ReadWriteLock structure = new ReentrantReadWriteLock();
+
+    /**
+     * Returns the deepest unexpired delegation enclosing the name, or null if only
+     * the root servers are known.
+     *
+     * @param name the domain name being resolved
+     * @return the closest enclosing delegation, or null
+     */
+    public Delegation findClosest(DnsName name) {
+        long now = System.currentTimeMillis();
+        Node node = root;
+        Delegation closest = null;
+        for (int labels = 1; labels <= name.getLabelCount(); labels++) {
+            // suffixes share the name's storage and hashes, so walking down copies no labels
+            node = node.children.get(name.suffix(labels));
+            if (node == null) {
+                break;
+            }
+            Delegation delegation = node.delegation;
+            if (delegation != null) {
+                if (!delegation.isExpired(now)) {
+                    closest = delegation;
+                } else {
+                    clearExpired(node, delegation);
+                }
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Caches the name server addresses of a zone cut. Servers without an address
+     * are left out. A new zone is not cached while the cache is full of unexpired
+     * delegations.
+     *
+     * @param zone    the delegated zone
+     * @param servers type A records of the zone's name servers
+     * @param ttl     time to live in seconds
+     */
+    public void store(DnsName zone, List<DNSRecord> servers, int ttl) {
+        if (ttl <= 0) {
+            return;
+        }
+        if (zone.isRoot()) {
+            // the root zone always comes from named.root
+            return;
+        }
+        List<DNSRecord> addressed = new ArrayList<>(servers.size());
+        for (DNSRecord server : servers) {
+            // a server without an address could never be queried
+            if (server.getDomainIP() != null) {
+                addressed.add(server);
+            }
+        }
+        if (addressed.isEmpty()) {
+            return;
+        }
+        long expiresAt = System.currentTimeMillis() + Math.min(ttl, MAX_TTL) * 1000L;
+        put(new Delegation(zone, Collections.unmodifiableList(addressed), expiresAt), true);
+    }
+
+    /**
+     * Caches a delegation read back from a snapshot with its original expiry time,
+     * unless it has expired or the zone already has an unexpired delegation.
+     */
+    public void restore(Delegation delegation) {
+        if (delegation.isExpired(System.currentTimeMillis()) || delegation.getServers().isEmpty()
+                || delegation.getZone().isRoot()) {
+            return;
+        }
+        put(delegation, false);
+    }
+
+    /**
+     * Returns every unexpired delegation, for a snapshot.
+     */
+    public List<Delegation> getDelegations() {
+        long now = System.currentTimeMillis();
+        List<Delegation> delegations = new ArrayList<>();
+        List<Node> pending = new ArrayList<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.remove(pending.size() - 1);
+            Delegation delegation = node.delegation;
+            if (delegation != null && !delegation.isExpired(now)) {
+                delegations.add(delegation);
+            }
+            pending.addAll(node.children.values());
+        }
+        return delegations;
+    }
+
+    /**
+     * Returns the number of zones with a delegation, expired ones not yet swept
+     * included.
+     */
+    public int size() {
+        return delegationCount.get();
+    }
+
+    /**
+     * Removes expired delegations and the trie nodes left without a delegation or
+     * children.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        structure.writeLock().lock();
+        try {
+            sweep(root, now);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    // returns true if the node is left empty
+    private boolean sweep(Node node, long now) {
+        Iterator<Map.Entry<DnsName, Node>> children = node.children.entrySet().iterator();
+        while (children.hasNext()) {
+            if (sweep(children.next().getValue(), now)) {
+                children.remove();
+            }
+        }
+        Delegation delegation = node.delegation;
+        if (delegation != null && delegation.isExpired(now)) {
+            clearExpired(node, delegation);
+        }
+        return node.delegation == null && node.children.isEmpty();
+    }
+
+    // writers lock the node so a restored delegation never replaces a fresh one
+    private void put(Delegation delegation, boolean replace) {
+        // one store in every SWEEP_INTERVAL runs the sweep
+        if (storesSinceSweep.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            sweep();
+        }
+        long now = System.currentTimeMillis();
+        structure.readLock().lock();
+        try {
+            Node node = nodeFor(delegation.getZone());
+            synchronized (node) {
+                Delegation current = node.delegation;
+                if (current == null) {
+                    if (delegationCount.get() >= MAX_DELEGATIONS) {
+                        // full of live zones, the empty node is removed by the next sweep
+                        return;
+                    }
+                    delegationCount.incrementAndGet();
+                } else if (!replace && !current.isExpired(now)) {
+                    return;
+                }
+                node.delegation = delegation;
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    private void clearExpired(Node node, Delegation expired) {
+        synchronized (node) {
+            // a fresh delegation may have been stored since it was read
+            if (node.delegation == expired) {
+                node.delegation = null;
+                delegationCount.decrementAndGet();
+            }
+        }
+    }
+
+    private Node nodeFor(DnsName zone) {
+        Node node = root;
+        for (int labels = 1; labels <= zone.getLabelCount(); labels++) {
+            node = node.children.computeIfAbsent(zone.suffix(labels), suffix -> new Node());
+        }
+        return node;
+    }
+
+    private static final class Node {
+        // keyed by the zone name at the child, which differs from ours by one label
+        private final ConcurrentHashMap<DnsName, Node> children = new ConcurrentHashMap<>();
+        private volatile Delegation delegation;
+    }
+}
@@ -0,0 +1,258 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Immutable domain name held in uncompressed wire format: length prefixed labels
+ * ending with the zero length root label. The offset of every label and the
+ * case-insensitive hash of the name starting at every label are computed once,
+ * so hashing, comparing and taking a parent or suffix never look at a String.
+ *
+ * A parent or suffix shares the storage of the name it was taken from. Equality
+ * and hashing ignore ASCII case, as RFC 4343 requires, while toString() and the
+ * wire bytes keep the case the name was created with.
+ */
+public final class DnsName {
+    public static final int MAX_WIRE_LENGTH = 255;
+    private static final int MAX_LABEL_LENGTH = 63;
+    public static final DnsName ROOT = new DnsName(new byte[] { 0 }, new int[] { 0 }, 0);
+
+    private final byte[] wire;
+    // offset in wire of each label, the root label included
+    private final int[] labelOffsets;
+    // case-insensitive hash of the name starting at each label
+    private final int[] suffixHashes;
+    // index of this name's first label in labelOffsets
+    private final int first;
+
+    private DnsName(byte[] wire, int[] labelOffsets, int labelCount) {
+        this.wire = wire;
+        this.labelOffsets = labelOffsets;
+        this.first = 0;
+        this.suffixHashes = new int[labelCount + 1];
+        for (int i = labelCount - 1; i >= 0; i--) {
+            int hash = suffixHashes[i + 1];
+            int offset = labelOffsets[i];
+            for (int j = offset; j <= offset + wire[offset]; j++) {
+                hash = 31 * hash + toLower(wire[j]);
+            }
+            suffixHashes[i] = hash;
+        }
+    }
+
+    private DnsName(DnsName whole, int first) {
+        this.wire = whole.wire;
+        this.labelOffsets = whole.labelOffsets;
+        this.suffixHashes = whole.suffixHashes;
+        this.first = first;
+    }
+
+    /**
+     * Parses a dotted name. A trailing dot is optional and the empty string and
+     * "." are the root.
+     *
+     * @throws IllegalArgumentException if a label is empty or too long, or the name
+     *                                  is longer than 255 bytes in wire format
+     */
+    public static DnsName of(String name) {
+        int end = name.endsWith(".") ? name.length() - 1 : name.length();
+        if (end <= 0) {
+            return ROOT;
+        }
+        if (end + 2 > MAX_WIRE_LENGTH) {
+            throw new IllegalArgumentException("Name too long: " + name);
+        }
+        byte[] wire = new byte[end + 2];
+        int[] offsets = new int[end / 2 + 2];
+        int labelCount = 0;
+        int start = 0;
+        int position = 0;
+        while (start <= end) {
+            int dot = name.indexOf('.', start);
+            if (dot < 0 || dot > end) {
+                dot = end;
+            }
+            int labelLength = dot - start;
+            if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH) {
+                throw new IllegalArgumentException("Invalid label in name: " + name);
+            }
+            offsets[labelCount++] = position;
+            wire[position++] = (byte) labelLength;
+            for (int i = start; i < dot; i++) {
+                wire[position++] = (byte) name.charAt(i);
+            }
+            start = dot + 1;
+        }
+        offsets[labelCount] = position;
+        return new DnsName(wire, offsets, labelCount);
+    }
+
+    /**
+     * Reads the possibly compressed name at offset of a message.
+     *
+     * @throws IllegalArgumentException on a malformed name or compression loop
+     */
+    public static DnsName fromWire(DNSMessageView message, int offset) {
+        byte[] wire = new byte[MAX_WIRE_LENGTH];
+        int[] offsets = new int[MAX_WIRE_LENGTH / 2 + 1];
+        int labelCount = 0;
+        int used = 0;
+        int position = offset;
+        while (true) {
+            int labelLength = message.u8(position);
+            if (labelLength == 0) {
+                break;
+            }
+            if ((labelLength & 0xC0) == 0xC0) {
+                int target = ((labelLength & 0x3F) << 8) | message.u8(position + 1);
+                if (target >= position) {
+                    // pointers must point backwards, anything else could loop forever
+                    throw new IllegalArgumentException("Malformed DNS message: bad compression pointer");
+                }
+                position = target;
+                continue;
+            }
+            if (labelLength > MAX_LABEL_LENGTH || used + labelLength + 2 > MAX_WIRE_LENGTH) {
+                throw new IllegalArgumentException("Malformed DNS message: invalid name");
+            }
+            offsets[labelCount++] = used;
+            wire[used++] = (byte) labelLength;
+            for (int i = 1; i <= labelLength; i++) {
+                wire[used++] = (byte) message.u8(position + i);
+            }
+            position += labelLength + 1;
+        }
+        if (labelCount == 0) {
+            return ROOT;
+        }
+        offsets[labelCount] = used;
+        wire[used++] = 0;
+        return new DnsName(Arrays.copyOf(wire, used), Arrays.copyOf(offsets, labelCount + 1),
+                labelCount);
+    }
+
+    /**
+     * Returns the number of labels, not counting the root label.
+     */
+    public int getLabelCount() {
+        return suffixHashes.length - 1 - first;
+    }
+
+    public boolean isRoot() {
+        return getLabelCount() == 0;
+    }
+
+    /**
+     * Returns the number of bytes of the name in wire format, root label included.
+     */
+    public int getWireLength() {
+        return wire.length - labelOffsets[first];
+    }
+
+    /**
+     * Writes the name in uncompressed wire format.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(wire, labelOffsets[first], getWireLength());
+    }
+
+    /**
+     * Writes the name in uncompressed wire format with ASCII letters lowercased,
+     * the canonical form of RFC 4034 section 6.2, so names equal under equals()
+     * have identical bytes.
+     *
+     * @return the offset just past the name
+     */
+    public int writeCanonicalTo(byte[] dst, int offset) {
+        int start = labelOffsets[first];
+        for (int i = start; i < wire.length; i++) {
+            dst[offset++] = (byte) toLower(wire[i]);
+        }
+        return offset;
+    }
+
+    /**
+     * Writes one label, length byte first, the first label being 0.
+     */
+    public void writeLabelTo(ByteBuffer buffer, int label) {
+        int offset = labelOffsets[first + label];
+        buffer.put(wire, offset, wire[offset] + 1);
+    }
+
+    /**
+     * Returns the name made of the last labelCount labels, the root for 0.
+     */
+    public DnsName suffix(int labelCount) {
+        int skip = getLabelCount() - labelCount;
+        if (skip < 0) {
+            throw new IllegalArgumentException("Name has only " + getLabelCount() + " labels");
+        }
+        return skip == 0 ? this : new DnsName(this, first + skip);
+    }
+
+    /**
+     * Returns true if this name is the zone itself or a name below it.
+     */
+    public boolean isSubdomainOf(DnsName zone) {
+        int skip = getLabelCount() - zone.getLabelCount();
+        return skip >= 0 && regionEquals(first + skip, zone);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DnsName)) {
+            return false;
+        }
+        DnsName other = (DnsName) o;
+        return getLabelCount() == other.getLabelCount() && regionEquals(first, other);
+    }
+
+    // compares the name starting at our label index to the whole of other
+    private boolean regionEquals(int label, DnsName other) {
+        if (suffixHashes[label] != other.hashCode()) {
+            return false;
+        }
+        int offset = labelOffsets[label];
+        int length = wire.length - offset;
+        if (length != other.getWireLength()) {
+            return false;
+        }
+        int otherOffset = other.labelOffsets[other.first];
+        for (int i = 0; i < length; i++) {
+            if (toLower(wire[offset + i]) != toLower(other.wire[otherOffset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return suffixHashes[first];
+    }
+
+    /**
+     * Returns the name in dotted form without the trailing dot, the root being the
+     * empty string.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getWireLength());
+        for (int i = first; i < suffixHashes.length - 1; i++) {
+            int offset = labelOffsets[i];
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            for (int j = offset + 1; j <= offset + wire[offset]; j++) {
+                sb.append((char) (wire[j] & 0xFF));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+    }
+}
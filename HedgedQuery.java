@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One question sent to several servers of an slist, each attempt launched after
+ * a stagger delay if nothing useful has arrived yet. The first usable response
+ * wins and the remaining attempts are cancelled. SERVFAIL and REFUSED responses
+ * only win once every attempt has finished without a better answer.
+ */
+public class HedgedQuery {
+    private static final int RCODE_SERVER_FAILURE = 2;
+    private static final int RCODE_REFUSED = 5;
+
+    private final CompletableFuture<byte[]> winner = new CompletableFuture<>();
+    private final List<CompletableFuture<byte[]>> attempts = new ArrayList<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile byte[] fallback;
+    private volatile boolean allLaunched;
+
+    /**
+     * Adds an attempt to the race.
+     *
+     * @param attempt future completed with the response of one server
+     */
+    public void launch(CompletableFuture<byte[]> attempt) {
+        outstanding.incrementAndGet();
+        attempts.add(attempt);
+        attempt.whenComplete((response, e) -> {
+            if (response != null && isUsable(response)) {
+                winner.complete(response);
+                return;
+            }
+            if (response != null) {
+                fallback = response;
+            }
+            if (outstanding.decrementAndGet() == 0 && allLaunched) {
+                winner.complete(fallback);
+            }
+        });
+    }
+
+    /**
+     * Marks that no more attempts will be launched, so the race ends once the
+     * outstanding ones have finished.
+     */
+    public void finishLaunching() {
+        allLaunched = true;
+        if (outstanding.get() == 0) {
+            winner.complete(fallback);
+        }
+    }
+
+    /**
+     * Waits up to the given time for the race to produce a response.
+     *
+     * @return the winning response, or null if none arrived in time or every
+     *         attempt failed
+     */
+    public byte[] await(long millis) {
+        try {
+            return winner.get(millis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Cancels every attempt still waiting for a response.
+     */
+    public void cancelStragglers() {
+        for (CompletableFuture<byte[]> attempt : attempts) {
+            attempt.cancel(false);
+        }
+    }
+
+    private static boolean isUsable(byte[] response) {
+        if (response.length < 4) {
+            return false;
+        }
+        int rCode = response[3] & 0x0F;
+        return rCode != RCODE_SERVER_FAILURE && rCode != RCODE_REFUSED;
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations in log-linear buckets: every power of two range of
+ * microseconds is split into SUB_BUCKETS equal buckets, so a percentile is off
+ * by at most 1/SUB_BUCKETS of its value whether it is 20 microseconds or 2
+ * seconds. Recording is a handful of atomic adds and never locks or allocates;
+ * readers see counts that may be a few recordings apart.
+ *
+ * Durations from about 19 hours up all fall in the last bucket.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // highest power of two with its own buckets, 2^35 microseconds is about 9.5 hours
+    private static final int MAX_EXPONENT = 35;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final String description;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Records the time elapsed since startNanos, a value of System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Records one duration.
+     *
+     * @param micros the duration in microseconds, negative values count as 0
+     */
+    public void record(long micros) {
+        long value = Math.max(micros, 0);
+        buckets.getAndIncrement(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // another thread raised the maximum meanwhile, compare again
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of all recorded durations in microseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    @Override
+    public long getMedian() {
+        return getPercentile(0.5);
+    }
+
+    @Override
+    public long get90thPercentile() {
+        return getPercentile(0.9);
+    }
+
+    @Override
+    public long get99thPercentile() {
+        return getPercentile(0.99);
+    }
+
+    @Override
+    public long get999thPercentile() {
+        return getPercentile(0.999);
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given fraction of recorded
+     * durations, never more than the largest duration recorded.
+     *
+     * @param quantile between 0 and 1
+     * @return the duration in microseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(double quantile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // values below SUB_BUCKETS get a bucket each, above that the top SUB_BUCKET_BITS + 1
+    // bits of the value pick the bucket
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // the largest value that falls in the bucket
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
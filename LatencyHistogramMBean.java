@@ -0,0 +1,20 @@
+/**
+ * JMX view of a LatencyHistogram, all durations in microseconds.
+ */
+public interface LatencyHistogramMBean {
+    long getCount();
+
+    double getMean();
+
+    long getMedian();
+
+    long get90thPercentile();
+
+    long get99thPercentile();
+
+    long get999thPercentile();
+
+    long getMax();
+
+    String getDescription();
+}
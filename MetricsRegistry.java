@@ -0,0 +1,114 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Named counters and latency histograms of the resolver. Metrics are created once
+ * and kept by their owners, so recording never goes through the registry; the
+ * registry only lists them for the exporters: each metric is registered as an
+ * MBean under DOMAIN, and export() writes all of them in the Prometheus text
+ * format for the HTTP endpoint.
+ *
+ * Names use lowercase words joined by underscores. Histograms are exported in
+ * seconds, as Prometheus expects, while their MBeans report microseconds.
+ */
+public class MetricsRegistry {
+    public static final String DOMAIN = "DNSResolver";
+    private static final String PREFIX = "dns_resolver_";
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    // sorted so every scrape lists the metrics in the same order
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private HttpServer httpServer;
+
+    /**
+     * Returns the counter with the given name, created on first use.
+     */
+    public Counter counter(String name, String description) {
+        return counters.computeIfAbsent(name, n -> register("Counter", n, new Counter(description)));
+    }
+
+    /**
+     * Returns the histogram with the given name, created on first use.
+     */
+    public LatencyHistogram histogram(String name, String description) {
+        return histograms.computeIfAbsent(name,
+                n -> register("LatencyHistogram", n, new LatencyHistogram(description)));
+    }
+
+    private static <T> T register(String type, String name, T metric) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(metric, objectName);
+            }
+        } catch (JMException e) {
+            // the metric still works, it is only missing from JMX
+            System.out.println("ERROR when registering MBean " + name + ": " + e.getMessage());
+        }
+        return metric;
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format: counters as
+     * counters, histograms as summaries with a few quantiles, their sum and count.
+     */
+    public String export() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            String name = PREFIX + entry.getKey() + "_total";
+            Counter counter = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(counter.getDescription()).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(counter.getCount()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            String name = PREFIX + entry.getKey() + "_seconds";
+            LatencyHistogram histogram = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(histogram.getDescription()).append('\n');
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (double quantile : QUANTILES) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.getPercentile(quantile))).append('\n');
+            }
+            out.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+            out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1_000_000.0);
+    }
+
+    /**
+     * Serves export() at /metrics on the given port with the JDK's built-in HTTP
+     * server, on a single thread of its own. Does nothing if already started.
+     */
+    public synchronized void startHttpServer(int port) throws IOException {
+        if (httpServer != null) {
+            return;
+        }
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = export().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(body);
+            }
+        });
+        httpServer.start();
+    }
+}
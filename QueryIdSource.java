@@ -0,0 +1,44 @@
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Source of unpredictable 16 bit message IDs for outgoing queries, which together
+ * with the random source port make forged responses hard to match (RFC 5452).
+ * Each thread has its own DRBG instance, so drawing an ID takes no lock and no
+ * system call, and random bytes are drawn in blocks of many IDs at a time.
+ */
+public final class QueryIdSource {
+    private static final int IDS_PER_BLOCK = 64;
+    private static final ThreadLocal<QueryIdSource> LOCAL = ThreadLocal.withInitial(QueryIdSource::new);
+
+    private final SecureRandom random;
+    private final byte[] block = new byte[IDS_PER_BLOCK * 2];
+    private int next = block.length;
+
+    private QueryIdSource() {
+        SecureRandom drbg;
+        try {
+            drbg = SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            drbg = new SecureRandom();
+        }
+        this.random = drbg;
+    }
+
+    /**
+     * Returns a random ID between 0 and 65535.
+     */
+    public static int next() {
+        return LOCAL.get().nextId();
+    }
+
+    private int nextId() {
+        if (next == block.length) {
+            random.nextBytes(block);
+            next = 0;
+        }
+        int id = ((block[next] & 0xFF) << 8) | (block[next + 1] & 0xFF);
+        next += 2;
+        return id;
+    }
+}
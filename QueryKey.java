@@ -0,0 +1,110 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Identifies one query on the wire: the peer address, the 16 bit message ID and
+ * the normalised question. Used to match upstream responses to their queries and
+ * to recognise client retransmits.
+ */
+public class QueryKey {
+    private static final int HEADER_SIZE = 12;
+    private final InetSocketAddress address;
+    private final int id;
+    private final byte[] question;
+    private final int hash;
+
+    public QueryKey(InetSocketAddress address, int id, byte[] question) {
+        this.address = address;
+        this.id = id;
+        this.question = question;
+        this.hash = 31 * (31 * address.hashCode() + id) + Arrays.hashCode(question);
+    }
+
+    /**
+     * Builds the key of a message received from or sent to the given address.
+     *
+     * @return the key, or null if the message has no well formed question
+     */
+    public static QueryKey of(InetSocketAddress address, byte[] message, int length) {
+        return of(address, ByteBuffer.wrap(message, 0, length));
+    }
+
+    /**
+     * Builds the key of the message between the buffer's position and limit,
+     * leaving both unchanged.
+     *
+     * @return the key, or null if the message has no well formed question
+     */
+    public static QueryKey of(InetSocketAddress address, ByteBuffer message) {
+        byte[] question = questionOf(message);
+        if (question == null) {
+            return null;
+        }
+        int base = message.position();
+        return new QueryKey(address, ((message.get(base) & 0xff) << 8) | (message.get(base + 1) & 0xff), question);
+    }
+
+    /**
+     * Extracts the question section (QNAME, QTYPE, QCLASS) with QNAME lowercased,
+     * so responses can be matched against the query that produced them.
+     *
+     * @return the normalised question bytes, or null if the message is malformed
+     */
+    public static byte[] questionOf(byte[] message, int length) {
+        return questionOf(ByteBuffer.wrap(message, 0, length));
+    }
+
+    /**
+     * Extracts the normalised question of the message between the buffer's
+     * position and limit, leaving both unchanged.
+     *
+     * @return the normalised question bytes, or null if the message is malformed
+     */
+    public static byte[] questionOf(ByteBuffer message) {
+        int base = message.position();
+        int length = message.remaining();
+        if (length < HEADER_SIZE) {
+            return null;
+        }
+        int offset = HEADER_SIZE;
+        while (offset < length && message.get(base + offset) != 0) {
+            int labelLength = message.get(base + offset) & 0xff;
+            if ((labelLength & 0xC0) != 0) {
+                // questions are never compressed
+                return null;
+            }
+            offset += labelLength + 1;
+        }
+        // terminating zero byte plus QTYPE and QCLASS
+        int end = offset + 5;
+        if (end > length) {
+            return null;
+        }
+        byte[] question = new byte[end - HEADER_SIZE];
+        message.get(base + HEADER_SIZE, question);
+        for (int i = 0; i < question.length - 4; i++) {
+            if (question[i] >= 'A' && question[i] <= 'Z') {
+                question[i] = (byte) (question[i] + ('a' - 'A'));
+            }
+        }
+        return question;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof QueryKey)) {
+            return false;
+        }
+        QueryKey other = (QueryKey) o;
+        return id == other.id && address.equals(other.address) && Arrays.equals(question, other.question);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
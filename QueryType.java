@@ -1,8 +1,34 @@
 public enum QueryType {
-    A,
-    MX,
-    NS,
-    CNAME,
-    PTR,
-    OTHER
+    A(1),
+    MX(15),
+    NS(2),
+    CNAME(5),
+    PTR(12),
+    SOA(6),
+    OPT(41),
+    OTHER(0);
+
+    // the TYPE value used on the wire, 0 for types this resolver does not know
+    private final int code;
+    private static final QueryType[] VALUES = values();
+
+    QueryType(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return this.code;
+    }
+
+    /**
+     * Returns the type with the given TYPE value, OTHER for unknown values.
+     */
+    public static QueryType fromCode(int code) {
+        for (QueryType type : VALUES) {
+            if (type.code == code && type != OTHER) {
+                return type;
+            }
+        }
+        return OTHER;
+    }
 }
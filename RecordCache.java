@@ -0,0 +1,279 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Answer cache keyed by (name, type, class). Each entry holds the full response
+ * message and expires after the smallest TTL of its answer RRset. NXDOMAIN and
+ * NODATA responses are cached as negative entries for the SOA minimum TTL, as
+ * described in RFC 2308.
+ *
+ * Entries are kept off-heap in a fixed number of segments sharing a memory
+ * budget, the segment chosen by the hash of the key's wire format question. The
+ * heap only ever holds the copy of an entry a lookup returns, however many
+ * entries are cached. When a segment's budget is used up its oldest entries are
+ * dropped.
+ */
+public class RecordCache {
+    private static final int MAX_TTL = 86400;
+    private static final int RCODE_NAME_ERROR = 3;
+    private static final int TYPE_SOA = 6;
+    // a power of two, lookups on different segments never contend
+    private static final int SEGMENTS = 32;
+    private volatile CacheSegment[] segments;
+    private volatile long memoryBudget;
+    private volatile int negativeTtlCap = 900;
+    // expired entries are kept this long so they can be served stale, see RFC 8767
+    private volatile long staleWindow = 86400 * 1000L;
+
+    /**
+     * @param memoryBudget bytes of direct memory the cache may use in total
+     */
+    public RecordCache(long memoryBudget) {
+        setMemoryBudget(memoryBudget);
+    }
+
+    /**
+     * Returns the unexpired entry for the key, or null on a miss.
+     */
+    public CacheEntry get(CacheKey key) {
+        byte[] question = key.getQuestion();
+        int hash = hash(question);
+        CacheSegment segment = segmentFor(hash);
+        CacheEntry entry = segment.get(question, hash);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (entry.isExpired(now)) {
+            if (entry.isExpired(now - staleWindow)) {
+                segment.remove(question, hash);
+            }
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns an expired entry that is still within the stale window, or null if
+     * there is none. Only used when a fresh answer cannot be had in time.
+     */
+    public CacheEntry getStale(CacheKey key) {
+        byte[] question = key.getQuestion();
+        int hash = hash(question);
+        CacheEntry entry = segmentFor(hash).get(question, hash);
+        long now = System.currentTimeMillis();
+        if (entry == null || !entry.isExpired(now) || entry.isExpired(now - staleWindow)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Counts a hit on the entry for the key and decides whether it should be
+     * refreshed in the background. Returns true at most once per stored entry,
+     * for a positive entry with enough hits that is within the prefetch window
+     * before its expiry.
+     *
+     * @param now current time in milliseconds
+     * @return true if the caller should start a prefetch
+     */
+    public boolean recordHitAndCheckPrefetch(CacheKey key, long now) {
+        byte[] question = key.getQuestion();
+        int hash = hash(question);
+        return segmentFor(hash).recordHitAndCheckPrefetch(question, hash, now);
+    }
+
+    /**
+     * Allows another prefetch attempt after one could not be started.
+     */
+    public void clearPrefetch(CacheKey key) {
+        byte[] question = key.getQuestion();
+        int hash = hash(question);
+        segmentFor(hash).clearPrefetch(question, hash);
+    }
+
+    /**
+     * Caches a response if it is a complete answer: no error, at least one answer
+     * record, not truncated and every record parsed. NXDOMAIN and NODATA responses
+     * carrying an SOA record are cached as negative entries.
+     *
+     * @param key     the question the response answers
+     * @param message the response bytes
+     * @param length  number of valid bytes in message
+     */
+    public void store(CacheKey key, byte[] message, int length) {
+        DNSMessageView msg;
+        try {
+            msg = new DNSMessageView(ByteBuffer.wrap(message, 0, length));
+        } catch (RuntimeException e) {
+            // malformed message, never cache it
+            return;
+        }
+        if (msg.isTruncated()) {
+            return;
+        }
+        boolean nameError = msg.getRCode() == RCODE_NAME_ERROR;
+        boolean noData = msg.getRCode() == 0 && msg.getANCount() == 0;
+        if (nameError || noData) {
+            storeNegative(key, message, msg);
+            return;
+        }
+        if (msg.getRCode() != 0) {
+            return;
+        }
+
+        int minTtl = MAX_TTL;
+        for (int i = 0; i < msg.getANCount(); i++) {
+            minTtl = Math.min(minTtl, msg.getTtl(i));
+        }
+        if (minTtl <= 0) {
+            return;
+        }
+
+        put(key, message, msg, minTtl, false);
+    }
+
+    private void storeNegative(CacheKey key, byte[] message, DNSMessageView msg) {
+        // the negative TTL is the smaller of the SOA record TTL and its MINIMUM field
+        int negativeTtl = -1;
+        for (int i = msg.getANCount(); i < msg.getANCount() + msg.getNSCount(); i++) {
+            if (msg.getRecordType(i) == TYPE_SOA) {
+                // MNAME, RNAME, then SERIAL REFRESH RETRY EXPIRE MINIMUM as 32 bit values
+                int rdataEnd = msg.getRdataOffset(i) + msg.getRdLength(i);
+                int numbers;
+                try {
+                    int rName = msg.getRdataOffset(i) + msg.nameLength(msg.getRdataOffset(i));
+                    numbers = rName + msg.nameLength(rName);
+                } catch (IllegalArgumentException e) {
+                    // a malformed SOA gives no negative TTL, the response is not cached
+                    return;
+                }
+                if (numbers + 20 > rdataEnd) {
+                    return;
+                }
+                negativeTtl = Math.min(msg.getTtl(i), msg.s32(numbers + 16));
+                break;
+            }
+        }
+        negativeTtl = Math.min(negativeTtl, negativeTtlCap);
+        if (negativeTtl <= 0) {
+            // no SOA in authority, the response cannot be cached
+            return;
+        }
+        put(key, message, msg, negativeTtl, true);
+    }
+
+    private void put(CacheKey key, byte[] message, DNSMessageView msg, int ttl, boolean negative) {
+        int[] ttlOffsets = new int[msg.getRecordCount()];
+        int[] ttls = new int[msg.getRecordCount()];
+        int count = 0;
+        for (int i = 0; i < msg.getRecordCount(); i++) {
+            // a negative entry ages only its authority and additional records
+            if (negative && i < msg.getANCount()) {
+                continue;
+            }
+            // the OPT pseudo record's TTL field holds EDNS flags, it must not be aged
+            if (msg.getRecordType(i) == DNSMessageView.TYPE_OPT) {
+                continue;
+            }
+            ttlOffsets[count] = msg.getTtlOffset(i);
+            // never hand out a TTL longer than the entry is kept for
+            ttls[count] = Math.min(msg.getTtl(i), negative ? ttl : MAX_TTL);
+            count++;
+        }
+        long now = System.currentTimeMillis();
+        byte[] question = key.getQuestion();
+        int hash = hash(question);
+        segmentFor(hash).put(question, hash, message, msg.getLength(), Arrays.copyOf(ttlOffsets, count),
+                Arrays.copyOf(ttls, count), now, now + ttl * 1000L, negative);
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Returns the size of a scratch buffer that holds all entries of a segment.
+     */
+    public int getSegmentCapacity() {
+        return segments[0].getCapacity();
+    }
+
+    /**
+     * Copies the entries of one segment into scratch for a snapshot. Only that
+     * segment is locked, and only for the copy, so lookups on the others go on.
+     *
+     * @return scratch, flipped to hold the entries between position and limit
+     */
+    public ByteBuffer copySegment(int segment, ByteBuffer scratch) {
+        scratch.clear();
+        segments[segment].copyEntriesTo(scratch);
+        return scratch.flip();
+    }
+
+    /**
+     * Stores an entry read back from a snapshot unless it has expired or an answer
+     * to its question is already cached.
+     *
+     * @param entries buffer holding entries written out by copySegment()
+     * @param offset  where the entry starts in entries
+     * @param now     current time in milliseconds
+     * @return the size of the entry, the offset of the next one being offset plus size
+     */
+    public int restore(ByteBuffer entries, int offset, long now) {
+        int size = CacheSegment.entrySize(entries, offset);
+        if (CacheSegment.entryExpiresAt(entries, offset) > now) {
+            byte[] question = CacheSegment.entryQuestion(entries, offset);
+            int hash = hash(question);
+            segmentFor(hash).restore(entries, offset, question, hash);
+        }
+        return size;
+    }
+
+    private CacheSegment segmentFor(int hash) {
+        // the low bits pick the index slot inside the segment, the high bits the segment
+        return segments[hash >>> 27];
+    }
+
+    // the question bytes are canonical, so the hash is the same in every run
+    private static int hash(byte[] question) {
+        int h = Arrays.hashCode(question);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Sets the total amount of direct memory the cache may use. Changing the
+     * budget empties the cache, so it is meant to be set once at startup.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget == this.memoryBudget) {
+            return;
+        }
+        CacheSegment[] resized = new CacheSegment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            resized[i] = new CacheSegment(memoryBudget / SEGMENTS);
+        }
+        this.segments = resized;
+        this.memoryBudget = memoryBudget;
+    }
+
+    public void setNegativeTtlCap(int negativeTtlCap) {
+        this.negativeTtlCap = negativeTtlCap;
+    }
+
+    public void setStaleWindow(int staleWindowSeconds) {
+        this.staleWindow = staleWindowSeconds * 1000L;
+    }
+
+    public int size() {
+        int size = 0;
+        for (CacheSegment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+}
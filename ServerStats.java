@@ -0,0 +1,133 @@
+/**
+ * Round trip time statistics of one upstream server, kept as a smoothed RTT and
+ * RTT variance in the style of RFC 6298, from which the server's retransmission
+ * timeout is derived. Estimates age with time so a server that was slow a while
+ * ago is eventually tried again.
+ */
+public class ServerStats {
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int K = 4;
+    // after this long without a sample an estimate has lost half its weight
+    private static final long DECAY_HALF_LIFE = 10 * 60 * 1000L;
+    // timeout used until the server has answered at least once
+    private static final int INITIAL_RTO = 500;
+    private static final int MIN_RTO = 50;
+    private static final int MAX_RTO = 3000;
+    private static final int MAX_BACKOFF = 6;
+    // consecutive unanswered queries with an OPT record after which a plain one is tried
+    private static final int EDNS_TIMEOUT_LIMIT = 3;
+
+    private double srtt;
+    private double rttvar;
+    private long lastUpdated;
+    private boolean measured;
+    // consecutive timeouts, each one doubles the RTO
+    private int backoff;
+    // until then the server is sent queries without an OPT record
+    private long noEdnsUntil;
+    // consecutive queries with an OPT record that went unanswered
+    private int ednsTimeouts;
+
+    public ServerStats(double initialSrtt) {
+        this.srtt = initialSrtt;
+        this.rttvar = initialSrtt / 2;
+        this.lastUpdated = System.currentTimeMillis();
+    }
+
+    /**
+     * Folds one RTT sample into the smoothed estimates and clears any backoff.
+     *
+     * @param rttMillis the measured round trip time in milliseconds
+     */
+    public synchronized void addSample(double rttMillis) {
+        if (!measured) {
+            srtt = rttMillis;
+            rttvar = rttMillis / 2;
+            measured = true;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rttMillis);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rttMillis;
+        }
+        backoff = 0;
+        lastUpdated = System.currentTimeMillis();
+    }
+
+    /**
+     * Records a query lost to a timeout. The estimates are left alone, as the RTT of
+     * a lost packet is unknown, but the RTO backs off exponentially.
+     */
+    public synchronized void backOff() {
+        backoff = Math.min(backoff + 1, MAX_BACKOFF);
+        lastUpdated = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the retransmission timeout, SRTT + K * RTTVAR clamped to
+     * [MIN_RTO, MAX_RTO] and doubled for every consecutive timeout.
+     */
+    public synchronized int getRto() {
+        double rto = measured ? srtt + K * rttvar : INITIAL_RTO;
+        rto = Math.min(Math.max(rto, MIN_RTO), MAX_RTO);
+        return (int) Math.min(rto * (1 << backoff), MAX_RTO);
+    }
+
+    /**
+     * Returns the value servers are ordered by: the smoothed RTT, or the backed off
+     * RTO for a server that is timing out, decayed by the time since the last
+     * update so stale slow estimates drift back towards being tried.
+     */
+    public synchronized double getEffectiveSrtt(long now) {
+        double age = Math.max(0, now - lastUpdated);
+        double estimate = backoff > 0 ? getRto() : srtt;
+        return estimate * Math.pow(0.5, age / DECAY_HALF_LIFE);
+    }
+
+    /**
+     * Records that the server does not understand EDNS0, so queries to it carry no
+     * OPT record until the given time, after which EDNS0 is tried again.
+     */
+    public synchronized void disableEdns(long until) {
+        noEdnsUntil = until;
+    }
+
+    /**
+     * Returns true if the next query should carry an OPT record: EDNS0 is not
+     * disabled, and queries with one have not gone unanswered EDNS_TIMEOUT_LIMIT
+     * times in a row. After that many a plain query is sent, to tell a server that
+     * drops EDNS0 queries from one that is down.
+     */
+    public synchronized boolean supportsEdns(long now) {
+        return now >= noEdnsUntil && ednsTimeouts < EDNS_TIMEOUT_LIMIT;
+    }
+
+    /**
+     * Records whether a query was answered, and whether it carried an OPT record.
+     * A plain query answered after repeated EDNS0 timeouts disables EDNS0 until
+     * the given time; one that times out as well means the server is down, and
+     * EDNS0 is used again.
+     */
+    public synchronized void recordEdnsResult(boolean withOpt, boolean answered, long disableUntil) {
+        if (withOpt) {
+            ednsTimeouts = answered ? 0 : ednsTimeouts + 1;
+        } else if (ednsTimeouts >= EDNS_TIMEOUT_LIMIT) {
+            if (answered) {
+                noEdnsUntil = disableUntil;
+            }
+            ednsTimeouts = 0;
+        }
+    }
+
+    /**
+     * Returns true if nothing has been learnt about the server for maxAge
+     * milliseconds and it is not remembered as lacking EDNS0, so its statistics
+     * can be forgotten.
+     */
+    public synchronized boolean isUnused(long now, long maxAge) {
+        return now - lastUpdated >= maxAge && now >= noEdnsUntil && ednsTimeouts == 0;
+    }
+
+    public synchronized double getSrtt() {
+        return srtt;
+    }
+}
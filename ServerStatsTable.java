@@ -0,0 +1,147 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per server IP round trip statistics used to order an slist so the fastest
+ * known servers are queried first. Servers never measured start with a small
+ * random SRTT so they are tried early, and now and then a slower server is
+ * moved to the front so its estimate keeps being refreshed. Servers not heard
+ * of for an hour are forgotten.
+ */
+public class ServerStatsTable {
+    private static final int MAX_INITIAL_SRTT = 32;
+    private static final double EXPLORATION_RATE = 0.05;
+    // a server that failed EDNS0 is asked plainly this long before EDNS0 is tried again
+    private static final long NO_EDNS_PERIOD = 60 * 60 * 1000L;
+    // servers are forgotten after this long without news, by a sweep every SWEEP_INTERVAL
+    // new servers; at most MAX_SERVERS are kept
+    private static final long STATS_MAX_AGE = 60 * 60 * 1000L;
+    private static final int SWEEP_INTERVAL = 1024;
+    private static final int MAX_SERVERS = 50000;
+    private final Map<String, ServerStats> stats = new ConcurrentHashMap<>();
+    private final AtomicInteger created = new AtomicInteger();
+
+    public ServerStats get(String serverIp) {
+        ServerStats serverStats = stats.get(serverIp);
+        if (serverStats != null) {
+            return serverStats;
+        }
+        // one new server in every SWEEP_INTERVAL runs the sweep
+        if (created.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            sweep();
+        }
+        ServerStats fresh = new ServerStats(1 + ThreadLocalRandom.current().nextInt(MAX_INITIAL_SRTT));
+        if (stats.size() >= MAX_SERVERS) {
+            // full of servers in use, this one is measured but not remembered
+            return fresh;
+        }
+        ServerStats raced = stats.putIfAbsent(serverIp, fresh);
+        return raced != null ? raced : fresh;
+    }
+
+    /**
+     * Forgets servers nothing has been learnt about for STATS_MAX_AGE.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        stats.values().removeIf(serverStats -> serverStats.isUnused(now, STATS_MAX_AGE));
+    }
+
+    public void recordRtt(String serverIp, double rttMillis) {
+        get(serverIp).addSample(rttMillis);
+    }
+
+    /**
+     * Records a query that got no answer within the server's RTO.
+     */
+    public void recordTimeout(String serverIp) {
+        get(serverIp).backOff();
+    }
+
+    /**
+     * Records that the server rejected a query with an OPT record with FORMERR or
+     * NOTIMP (RFC 6891 section 7).
+     */
+    public void recordNoEdns(String serverIp) {
+        get(serverIp).disableEdns(System.currentTimeMillis() + NO_EDNS_PERIOD);
+    }
+
+    /**
+     * Records a UDP query that was answered or timed out, with or without an OPT
+     * record, so servers that only drop EDNS0 queries are eventually asked plainly.
+     */
+    public void recordEdnsResult(String serverIp, boolean withOpt, boolean answered) {
+        get(serverIp).recordEdnsResult(withOpt, answered, System.currentTimeMillis() + NO_EDNS_PERIOD);
+    }
+
+    /**
+     * Returns false while queries to the server must be sent without EDNS0.
+     */
+    public boolean supportsEdns(String serverIp) {
+        return get(serverIp).supportsEdns(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the current retransmission timeout of the server in milliseconds.
+     */
+    public int getRto(String serverIp) {
+        return get(serverIp).getRto();
+    }
+
+    /**
+     * Records a query cancelled because another server answered first. The server
+     * was at least this slow, so the wait only counts if it is above the estimate.
+     */
+    public void recordCancelled(String serverIp, double waitedMillis) {
+        ServerStats serverStats = get(serverIp);
+        if (waitedMillis > serverStats.getSrtt()) {
+            serverStats.addSample(waitedMillis);
+        }
+    }
+
+    /**
+     * Returns a copy of the slist ordered by ascending effective SRTT.
+     *
+     * @param slist the servers to order
+     * @return the ordered slist
+     */
+    public List<DNSRecord> order(List<DNSRecord> slist) {
+        long now = System.currentTimeMillis();
+        // other threads update the statistics meanwhile, so every key is read once
+        // before sorting and the comparison stays consistent
+        List<Ranked> ranked = new ArrayList<>(slist.size());
+        for (DNSRecord r : slist) {
+            ranked.add(new Ranked(r, r.getQueryType() == QueryType.A ? get(r.getDomainIP()).getEffectiveSrtt(now)
+                    : Double.MAX_VALUE));
+        }
+        ranked.sort(Comparator.comparingDouble(r -> r.key));
+        List<DNSRecord> ordered = new ArrayList<>(ranked.size());
+        for (Ranked r : ranked) {
+            ordered.add(r.record);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (ordered.size() > 1 && random.nextDouble() < EXPLORATION_RATE) {
+            // explore: give a slower server the first slot
+            int explored = 1 + random.nextInt(ordered.size() - 1);
+            if (ordered.get(explored).getQueryType() == QueryType.A) {
+                ordered.add(0, ordered.remove(explored));
+            }
+        }
+        return ordered;
+    }
+
+    private static final class Ranked {
+        private final DNSRecord record;
+        private final double key;
+
+        private Ranked(DNSRecord record, double key) {
+            this.record = record;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * One persistent TCP connection to an upstream server. Any number of queries can
+ * be outstanding at once (RFC 7766 section 6.2.1.1), each gets an ID unique on the
+ * connection and a reader thread matches responses in whatever order the server
+ * sends them. When the connection is lost every outstanding query fails.
+ */
+public class TcpConnection implements Closeable {
+    private final InetSocketAddress server;
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final Map<QueryKey, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile int queriesSent;
+    private volatile boolean closed;
+
+    /**
+     * Connects to the server and starts reading responses on a thread of the given
+     * executor.
+     */
+    public TcpConnection(InetSocketAddress server, int connectTimeout, Executor readerExecutor)
+            throws IOException {
+        this.server = server;
+        this.socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(server, connectTimeout);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        readerExecutor.execute(this::readLoop);
+    }
+
+    /**
+     * Writes the query to the connection under a fresh ID and returns a future
+     * completed with the matching response. The future fails if the connection is
+     * lost before the response arrives.
+     *
+     * @param queryBytes the wire format query, header included
+     * @param length     number of valid bytes in queryBytes
+     * @return a future completed with the response bytes
+     */
+    public CompletableFuture<byte[]> send(byte[] queryBytes, int length) {
+        byte[] query = Arrays.copyOf(queryBytes, length);
+        byte[] question = QueryKey.questionOf(query, length);
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        if (question == null) {
+            future.completeExceptionally(new IOException("Malformed upstream query"));
+            return future;
+        }
+
+        // pick an ID that does not collide with another query on this connection
+        QueryKey key;
+        do {
+            int id = QueryIdSource.next();
+            query[0] = (byte) (id >> 8);
+            query[1] = (byte) id;
+            key = new QueryKey(server, id, question);
+        } while (pending.putIfAbsent(key, future) != null);
+
+        QueryKey registered = key;
+        future.whenComplete((response, e) -> pending.remove(registered, future));
+        if (closed) {
+            // lost the race with close(), which may already have failed the pending queries
+            future.completeExceptionally(new IOException("TCP connection to " + server + " closed"));
+            return future;
+        }
+
+        try {
+            synchronized (out) {
+                out.writeShort(length);
+                out.write(query, 0, length);
+                out.flush();
+            }
+            queriesSent++;
+            lastActivity = System.currentTimeMillis();
+        } catch (IOException e) {
+            close();
+        }
+        return future;
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                byte[] response = new byte[in.readUnsignedShort()];
+                in.readFully(response);
+                lastActivity = System.currentTimeMillis();
+                QueryKey key = QueryKey.of(server, response, response.length);
+                CompletableFuture<byte[]> future = key == null ? null : pending.get(key);
+                if (future != null) {
+                    future.complete(response);
+                }
+            }
+        } catch (IOException e) {
+            // the server closed the connection or it broke, fall through to close
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Returns true once the connection has had no outstanding query and no traffic
+     * for the given number of milliseconds.
+     */
+    public boolean isIdle(long now, long idleTimeout) {
+        return pending.isEmpty() && now - lastActivity >= idleTimeout;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public int getQueriesSent() {
+        return queriesSent;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+        for (CompletableFuture<byte[]> future : pending.values()) {
+            future.completeExceptionally(new IOException("TCP connection to " + server + " closed"));
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Upstream DNS over TCP, used to re-issue queries whose UDP response came back
+ * truncated. Each message is framed with a two byte length prefix as described
+ * in RFC 1035 section 4.2.2. Connections are kept open per server and reused as
+ * RFC 7766 recommends: queries are pipelined on an open connection, a second one
+ * is only opened when the first has many queries outstanding, and connections
+ * with nothing outstanding are closed once they have been idle a while. A new
+ * connection is opened outside the pool's lock, so a slow connect never holds up
+ * queries that can use a connection already open.
+ */
+public class TcpTransport implements Closeable {
+    private static final int MAX_CONNECTIONS_PER_SERVER = 2;
+    private static final int MAX_PIPELINED_QUERIES = 64;
+    private static final int IDLE_TIMEOUT = 10000;
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService idleReaper;
+    private final Map<InetSocketAddress, Pool> pools = new ConcurrentHashMap<>();
+
+    public TcpTransport(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "upstream-tcp-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.idleReaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upstream-tcp-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        idleReaper.scheduleWithFixedDelay(this::closeIdleConnections, IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the query to the server over a pooled TCP connection and returns a
+     * future completed with the full response. The query ID is replaced with one
+     * unique on the connection. If a reused connection turns out to have been
+     * closed by the server the query is retried once on a new connection.
+     *
+     * @param server     the upstream server address and port
+     * @param queryBytes the wire format query, header included
+     * @param length     number of valid bytes in queryBytes
+     * @return a future completed with the response bytes
+     */
+    public CompletableFuture<byte[]> query(InetSocketAddress server, byte[] queryBytes, int length) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        // connecting blocks, so never do it on the caller's thread
+        executor.execute(() -> attempt(server, queryBytes, length, result, true));
+        return result.orTimeout(getTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt(InetSocketAddress server, byte[] queryBytes, int length, CompletableFuture<byte[]> result,
+            boolean mayRetry) {
+        if (result.isDone()) {
+            return;
+        }
+        TcpConnection connection;
+        try {
+            connection = acquire(server);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        boolean reused = connection.getQueriesSent() > 0;
+        CompletableFuture<byte[]> sent = connection.send(queryBytes, length);
+        // a timed out or cancelled query stops waiting on the connection
+        result.whenComplete((response, e) -> sent.cancel(false));
+        sent.whenComplete((response, e) -> {
+            if (e == null) {
+                result.complete(response);
+            } else if (mayRetry && reused) {
+                executor.execute(() -> attempt(server, queryBytes, length, result, false));
+            } else {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private TcpConnection acquire(InetSocketAddress server) throws IOException {
+        Pool pool;
+        while (true) {
+            pool = pools.computeIfAbsent(server, s -> new Pool());
+            synchronized (pool) {
+                if (pools.get(server) != pool) {
+                    // the reaper dropped this pool while we waited, start over
+                    continue;
+                }
+                List<TcpConnection> connections = pool.connections;
+                connections.removeIf(TcpConnection::isClosed);
+                TcpConnection leastLoaded = null;
+                for (TcpConnection c : connections) {
+                    if (leastLoaded == null || c.getPendingCount() < leastLoaded.getPendingCount()) {
+                        leastLoaded = c;
+                    }
+                }
+                boolean atLimit = connections.size() + pool.connecting >= MAX_CONNECTIONS_PER_SERVER;
+                if (leastLoaded != null && (leastLoaded.getPendingCount() < MAX_PIPELINED_QUERIES || atLimit)) {
+                    return leastLoaded;
+                }
+                if (!atLimit) {
+                    // reserve the slot, the connect itself happens outside the lock
+                    pool.connecting++;
+                    break;
+                }
+                // every slot is still connecting, wait for one of them to finish
+                try {
+                    pool.wait(connectTimeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a connection to " + server);
+                }
+            }
+        }
+        TcpConnection connection = null;
+        try {
+            connection = new TcpConnection(server, connectTimeout, executor);
+            return connection;
+        } finally {
+            synchronized (pool) {
+                pool.connecting--;
+                if (connection != null) {
+                    pool.connections.add(connection);
+                }
+                pool.notifyAll();
+            }
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<InetSocketAddress, Pool> entry : pools.entrySet()) {
+            Pool pool = entry.getValue();
+            synchronized (pool) {
+                pool.connections.removeIf(c -> {
+                    if (c.isIdle(now, IDLE_TIMEOUT)) {
+                        c.close();
+                    }
+                    return c.isClosed();
+                });
+                if (pool.connections.isEmpty() && pool.connecting == 0) {
+                    pools.remove(entry.getKey(), pool);
+                }
+            }
+        }
+    }
+
+    public int getTimeout() {
+        return connectTimeout + readTimeout;
+    }
+
+    @Override
+    public void close() {
+        idleReaper.shutdownNow();
+        for (Pool pool : pools.values()) {
+            synchronized (pool) {
+                pool.connections.forEach(TcpConnection::close);
+            }
+        }
+        pools.clear();
+        executor.shutdownNow();
+    }
+
+    // the open connections to one server, and how many more are being opened
+    private static final class Pool {
+        private final List<TcpConnection> connections = new ArrayList<>();
+        private int connecting;
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Multiplexed UDP transport for upstream queries. A small pool of non-blocking
+ * DatagramChannels, each bound to a kernel chosen ephemeral port, is shared by
+ * every resolution. Queries are sent from the calling thread and a single I/O
+ * thread receives all responses, matching them to the outstanding query by
+ * (server, ID, question) and completing its future.
+ */
+public class UpstreamTransport implements Closeable {
+    private static final int MAX_RESPONSE_SIZE = 65535;
+    // queries are one question and at most an OPT record, far below this
+    private static final int MAX_QUERY_SIZE = 512;
+
+    private final DatagramChannel[] channels;
+    private final Selector selector;
+    private final Map<QueryKey, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+    private final BufferPool sendBuffers = new BufferPool(MAX_QUERY_SIZE, 64);
+    private final Counter receiveErrors;
+    private final Thread ioThread;
+    private volatile boolean running = true;
+
+    public UpstreamTransport(int channelCount, Counter receiveErrors) throws IOException {
+        this.receiveErrors = receiveErrors;
+        this.selector = Selector.open();
+        this.channels = new DatagramChannel[channelCount];
+        for (int i = 0; i < channelCount; i++) {
+            DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.configureBlocking(false);
+            // port 0 lets the kernel pick a random ephemeral source port
+            channel.bind(new InetSocketAddress(0));
+            channel.register(selector, SelectionKey.OP_READ);
+            channels[i] = channel;
+        }
+        this.ioThread = new Thread(this::receiveLoop, "upstream-io");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    /**
+     * Sends the request to the given server and returns a future completed with the
+     * matching response bytes. The request is encoded straight into a pooled direct
+     * buffer, and its ID is replaced with a fresh random ID that is unique among the
+     * outstanding queries to that server. Cancelling or timing out the future
+     * removes the query from the outstanding table.
+     *
+     * @param server         the upstream server address and port
+     * @param request        the question to ask
+     * @param udpPayloadSize the EDNS0 payload size to advertise, 0 for no OPT record
+     * @return a future completed with the response bytes
+     */
+    public CompletableFuture<byte[]> query(InetSocketAddress server, DNSRequest request, int udpPayloadSize) {
+        ByteBuffer query = sendBuffers.acquire();
+        try {
+            request.encode(query, udpPayloadSize);
+            return send(server, query.flip());
+        } finally {
+            sendBuffers.release(query);
+        }
+    }
+
+    // sends the query between the buffer's position and limit, its ID is overwritten
+    private CompletableFuture<byte[]> send(InetSocketAddress server, ByteBuffer query) {
+        byte[] question = QueryKey.questionOf(query);
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        if (question == null) {
+            future.completeExceptionally(new IOException("Malformed upstream query"));
+            return future;
+        }
+
+        // pick an ID that does not collide with another outstanding query
+        QueryKey key;
+        int id;
+        do {
+            id = QueryIdSource.next();
+            key = new QueryKey(server, id, question);
+        } while (pending.putIfAbsent(key, future) != null);
+
+        QueryKey registered = key;
+        future.whenComplete((response, e) -> pending.remove(registered, future));
+
+        query.putShort(query.position(), (short) id);
+        DatagramChannel channel = channels[ThreadLocalRandom.current().nextInt(channels.length)];
+        try {
+            if (channel.send(query, server) == 0) {
+                future.completeExceptionally(new IOException("Upstream send buffer full"));
+            }
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_RESPONSE_SIZE);
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey selected = keys.next();
+                    keys.remove();
+                    if (!selected.isValid() || !selected.isReadable()) {
+                        continue;
+                    }
+                    DatagramChannel channel = (DatagramChannel) selected.channel();
+                    SocketAddress source;
+                    while ((source = channel.receive(buffer)) != null) {
+                        buffer.flip();
+                        dispatch((InetSocketAddress) source, buffer);
+                        buffer.clear();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                // a failed receive loses at most that datagram, whose query then times out
+                receiveErrors.increment();
+            }
+        }
+    }
+
+    private void dispatch(InetSocketAddress source, ByteBuffer buffer) {
+        QueryKey key = QueryKey.of(source, buffer);
+        if (key == null) {
+            // not a DNS response we can match, drop it
+            return;
+        }
+        CompletableFuture<byte[]> future = pending.get(key);
+        if (future != null) {
+            // only a matched response is copied out of the receive buffer
+            byte[] response = new byte[buffer.remaining()];
+            buffer.get(response);
+            future.complete(response);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.close();
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+        for (CompletableFuture<byte[]> future : pending.values()) {
+            future.completeExceptionally(new IOException("Upstream transport closed"));
+        }
+    }
+}
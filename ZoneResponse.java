@@ -0,0 +1,23 @@
+import java.net.DatagramPacket;
+
+/**
+ * A response together with the zone of the server that sent it. The server is
+ * only trusted for records owned by names inside that zone.
+ */
+public class ZoneResponse {
+    private final DatagramPacket packet;
+    private final DnsName zone;
+
+    public ZoneResponse(DatagramPacket packet, DnsName zone) {
+        this.packet = packet;
+        this.zone = zone;
+    }
+
+    public DatagramPacket getPacket() {
+        return this.packet;
+    }
+
+    public DnsName getZone() {
+        return this.zone;
+    }
+}